@@ -0,0 +1,238 @@
+package com.mapbox.mapboxsdk.overlay;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import com.mapbox.mapboxsdk.util.GeometryMath;
+
+/**
+ * A bitmap holding the tiles drawn by a {@link TilesOverlay} at one zoom level, so that a frame
+ * is drawn with a few bitmap copies instead of one per tile. A tile is only drawn into the atlas
+ * when it arrives or scrolls into view.
+ * <p/>
+ * Tiles are laid out modulo the size of the atlas: tile (x, y) goes in cell (x % columns,
+ * y % rows). Panning reuses the cells of the tiles which went out of view without moving
+ * anything, and the visible grid is drawn in at most four pieces, split where it wraps around.
+ */
+final class TileAtlas {
+
+    /**
+     * Number of tiles a missing tile can be drawn from, its four children at most
+     */
+    static final int MAXIMUM_FALLBACKS = 4;
+
+    private static final long NO_FALLBACK = -1;
+
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private final Paint mClearPaint = new Paint();
+    private final Paint mPaint = new Paint();
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDestRect = new Rect();
+
+    private int mColumns = 0;
+    private int mRows = 0;
+    private int mTileSizePx = 0;
+    private int mZoom = -1;
+    private int mSourceId = -1;
+
+    // what every cell holds: the tile coordinates and the drawable drawn there
+    private long[] mCellKeys = new long[0];
+    private Drawable[] mCellDrawables = new Drawable[0];
+    private boolean[] mCellSet = new boolean[0];
+    // for the cells of missing tiles, the key and drawables of the tiles they were drawn from
+    private long[] mCellFallbackKeys = new long[0];
+    private Drawable[] mCellFallbacks = new Drawable[0];
+
+    TileAtlas() {
+        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        mPaint.setFilterBitmap(true);
+    }
+
+    /**
+     * Gets the atlas ready for a frame, forgetting its content if the zoom level or the source
+     * changed, and growing it if the grid of tiles doesn't fit anymore.
+     *
+     * @return false if the atlas can't be used for this frame because it couldn't be allocated
+     */
+    boolean prepare(final int pZoom, final int pSourceId, final int pTileSizePx,
+            final int pColumns, final int pRows) {
+        if (mBitmap == null || pTileSizePx != mTileSizePx || pColumns > mColumns
+                || pRows > mRows) {
+            final int columns = Math.max(pColumns, (pTileSizePx == mTileSizePx) ? mColumns : 0);
+            final int rows = Math.max(pRows, (pTileSizePx == mTileSizePx) ? mRows : 0);
+            release();
+            try {
+                mBitmap = Bitmap.createBitmap(columns * pTileSizePx, rows * pTileSizePx,
+                        Bitmap.Config.ARGB_8888);
+            } catch (final OutOfMemoryError e) {
+                Log.e(TAG, "OutOfMemoryError allocating a " + columns + "x" + rows + " atlas");
+                return false;
+            }
+            mCanvas = new Canvas(mBitmap);
+            mColumns = columns;
+            mRows = rows;
+            mTileSizePx = pTileSizePx;
+            mCellKeys = new long[columns * rows];
+            mCellDrawables = new Drawable[columns * rows];
+            mCellSet = new boolean[columns * rows];
+            mCellFallbackKeys = new long[columns * rows];
+            mCellFallbacks = new Drawable[columns * rows * MAXIMUM_FALLBACKS];
+            mZoom = -1;
+        }
+        if (pZoom != mZoom || pSourceId != mSourceId) {
+            clear();
+            mZoom = pZoom;
+            mSourceId = pSourceId;
+        }
+        return true;
+    }
+
+    private static long getCellKey(final int pX, final int pY) {
+        return ((long) pX << 32) | (pY & 0xffffffffL);
+    }
+
+    /**
+     * Draws a tile into its cell, unless the cell already shows the same drawable for it.
+     *
+     * @param pX the column of the tile in the drawn grid, can be outside of the world
+     * @param pY the row of the tile in the drawn grid
+     * @param pDrawable the drawable of the tile, or null to leave the cell transparent
+     */
+    void update(final int pX, final int pY, final Drawable pDrawable) {
+        final int column = GeometryMath.mod(pX, mColumns);
+        final int row = GeometryMath.mod(pY, mRows);
+        final int cell = row * mColumns + column;
+        final long key = getCellKey(pX, pY);
+        if (mCellSet[cell] && mCellKeys[cell] == key && mCellDrawables[cell] == pDrawable
+                && mCellFallbackKeys[cell] == NO_FALLBACK) {
+            return;
+        }
+        mDestRect.set(column * mTileSizePx, row * mTileSizePx, (column + 1) * mTileSizePx,
+                (row + 1) * mTileSizePx);
+        mCanvas.drawRect(mDestRect, mClearPaint);
+        if (pDrawable != null) {
+            pDrawable.setBounds(mDestRect);
+            pDrawable.draw(mCanvas);
+        }
+        mCellKeys[cell] = key;
+        mCellDrawables[cell] = pDrawable;
+        mCellSet[cell] = true;
+        setCellFallbacks(cell, NO_FALLBACK, null);
+    }
+
+    /**
+     * Clears the cell of a missing tile so that it can be drawn from other tiles, unless the
+     * cell already shows it drawn from the same ones, like {@link #update(int, int, Drawable)}.
+     *
+     * @param pX the column of the tile in the drawn grid
+     * @param pY the row of the tile in the drawn grid
+     * @param pFallbackKey the key of the tiles it is drawn from, the same for the same tiles
+     * @param pFallbacks the drawables it is drawn from, {@link #MAXIMUM_FALLBACKS} at most,
+     * null where there is none
+     * @param pCellRect set to the bounds of the cell in the atlas
+     * @return the canvas drawing into the atlas, or null if the cell doesn't need to be drawn
+     */
+    Canvas beginFallbackUpdate(final int pX, final int pY, final long pFallbackKey,
+            final Drawable[] pFallbacks, final Rect pCellRect) {
+        final int column = GeometryMath.mod(pX, mColumns);
+        final int row = GeometryMath.mod(pY, mRows);
+        final int cell = row * mColumns + column;
+        final long key = getCellKey(pX, pY);
+        if (mCellSet[cell] && mCellKeys[cell] == key && mCellFallbackKeys[cell] == pFallbackKey
+                && hasCellFallbacks(cell, pFallbacks)) {
+            return null;
+        }
+        pCellRect.set(column * mTileSizePx, row * mTileSizePx, (column + 1) * mTileSizePx,
+                (row + 1) * mTileSizePx);
+        mCanvas.drawRect(pCellRect, mClearPaint);
+        mCellKeys[cell] = key;
+        mCellDrawables[cell] = null;
+        mCellSet[cell] = true;
+        setCellFallbacks(cell, pFallbackKey, pFallbacks);
+        return mCanvas;
+    }
+
+    private boolean hasCellFallbacks(final int pCell, final Drawable[] pFallbacks) {
+        final int offset = pCell * MAXIMUM_FALLBACKS;
+        for (int i = 0; i < MAXIMUM_FALLBACKS; i++) {
+            final Drawable fallback = (i < pFallbacks.length) ? pFallbacks[i] : null;
+            if (mCellFallbacks[offset + i] != fallback) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setCellFallbacks(final int pCell, final long pFallbackKey,
+            final Drawable[] pFallbacks) {
+        mCellFallbackKeys[pCell] = pFallbackKey;
+        final int offset = pCell * MAXIMUM_FALLBACKS;
+        for (int i = 0; i < MAXIMUM_FALLBACKS; i++) {
+            mCellFallbacks[offset + i] = (pFallbacks != null && i < pFallbacks.length)
+                    ? pFallbacks[i] : null;
+        }
+    }
+
+    /**
+     * Draws the given grid of tiles from the atlas.
+     *
+     * @param pCanvas the canvas to draw on
+     * @param pGrid the columns and rows of the tiles to draw, inclusive
+     * @param pTileSize the size of a tile on the canvas
+     * @param pOffset the offset of the canvas origin, in pixels
+     */
+    void draw(final Canvas pCanvas, final Rect pGrid, final float pTileSize, final int pOffset) {
+        int y = pGrid.top;
+        while (y <= pGrid.bottom) {
+            final int row = GeometryMath.mod(y, mRows);
+            final int rows = Math.min(pGrid.bottom - y + 1, mRows - row);
+            int x = pGrid.left;
+            while (x <= pGrid.right) {
+                final int column = GeometryMath.mod(x, mColumns);
+                final int columns = Math.min(pGrid.right - x + 1, mColumns - column);
+                mSrcRect.set(column * mTileSizePx, row * mTileSizePx,
+                        (column + columns) * mTileSizePx, (row + rows) * mTileSizePx);
+                mDestRect.set((int) (x * pTileSize - pOffset), (int) (y * pTileSize - pOffset),
+                        (int) ((x + columns) * pTileSize - pOffset),
+                        (int) ((y + rows) * pTileSize - pOffset));
+                pCanvas.drawBitmap(mBitmap, mSrcRect, mDestRect, mPaint);
+                x += columns;
+            }
+            y += rows;
+        }
+    }
+
+    /**
+     * Forgets the content of every cell, so that tiles are drawn again.
+     */
+    void clear() {
+        for (int i = 0; i < mCellSet.length; i++) {
+            mCellSet[i] = false;
+            mCellDrawables[i] = null;
+            setCellFallbacks(i, NO_FALLBACK, null);
+        }
+    }
+
+    /**
+     * Drops the bitmap, the atlas allocates a new one the next time it is prepared.
+     */
+    void release() {
+        mCanvas = null;
+        mBitmap = null;
+        mColumns = 0;
+        mRows = 0;
+        mCellKeys = new long[0];
+        mCellDrawables = new Drawable[0];
+        mCellSet = new boolean[0];
+        mCellFallbackKeys = new long[0];
+        mCellFallbacks = new Drawable[0];
+    }
+
+    private static final String TAG = "TileAtlas";
+}
@@ -12,14 +12,18 @@ import android.os.Build;
 import android.util.Log;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
+import com.mapbox.mapboxsdk.tileprovider.MapTilePrefetcher;
 import com.mapbox.mapboxsdk.util.GeometryMath;
+import com.mapbox.mapboxsdk.util.LongHashMap;
 import com.mapbox.mapboxsdk.util.TileLooper;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.safecanvas.ISafeCanvas;
 import com.mapbox.mapboxsdk.views.safecanvas.SafePaint;
 import com.mapbox.mapboxsdk.views.util.Projection;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -37,16 +41,33 @@ public class TilesOverlay extends SafeDrawOverlay {
      */
     protected final MapTileLayerBase mTileProvider;
 
+    /**
+     * Requests the tiles around the drawn ones
+     */
+    protected final MapTilePrefetcher mPrefetcher;
+
     /* to avoid allocations during draw */
     protected static SafePaint mDebugPaint = null;
     protected Paint mLoadingPaint = null;
     private final Rect mTileRect = new Rect();
     private final Rect mViewPort = new Rect();
     private final Rect mClipRect = new Rect();
+    private final Rect mFallbackSrcRect = new Rect();
+    private final Rect mFallbackDestRect = new Rect();
+    private final Rect mAtlasCellRect = new Rect();
+    private final Paint mFallbackPaint = new Paint();
     float mCurrentZoomFactor = 1;
 
     private boolean mOptionsMenuEnabled = true;
 
+    /**
+     * Tiles drawn so far at the current zoom level, when drawing through an atlas is enabled
+     */
+    private TileAtlas mAtlas = null;
+    // whether the atlas is drawn this frame, and the grid of tiles it covers
+    private boolean mAtlasInUse = false;
+    private final Rect mAtlasGrid = new Rect();
+
     private int mWorldSize_2;
 
     /**
@@ -63,6 +84,7 @@ public class TilesOverlay extends SafeDrawOverlay {
                     "You must pass a valid tile provider to the tiles overlay.");
         }
         this.mTileProvider = aTileProvider;
+        this.mPrefetcher = new MapTilePrefetcher(aTileProvider);
         if (UtilConstants.DEBUGMODE) {
             if (mDebugPaint == null) {
                 mDebugPaint = new SafePaint();
@@ -78,11 +100,41 @@ public class TilesOverlay extends SafeDrawOverlay {
         mLoadingPaint.setFilterBitmap(true);
         mLoadingPaint.setColor(mLoadingLineColor);
         mLoadingPaint.setStrokeWidth(0);
+
+        mFallbackPaint.setFilterBitmap(true);
     }
 
     @Override
     public void onDetach(final MapView pMapView) {
         this.mTileProvider.detach();
+        if (mAtlas != null) {
+            mAtlas.release();
+        }
+    }
+
+    /**
+     * Sets whether tiles are composited into an atlas bitmap covering the viewport, instead of
+     * being drawn one by one. A tile is then only drawn when it arrives or comes into view, and
+     * panning copies the atlas in a few pieces. This is faster on devices without hardware
+     * acceleration, at the cost of a bitmap about the size of the viewport plus a ring of tiles.
+     *
+     * @param aEnabled true to draw tiles through an atlas
+     */
+    public void setTileAtlasEnabled(final boolean aEnabled) {
+        if (aEnabled && mAtlas == null) {
+            mAtlas = new TileAtlas();
+        } else if (!aEnabled && mAtlas != null) {
+            mAtlas.release();
+            mAtlas = null;
+        }
+    }
+
+    public boolean isTileAtlasEnabled() {
+        return mAtlas != null;
+    }
+
+    public MapTilePrefetcher getPrefetcher() {
+        return mPrefetcher;
     }
 
     public float getMinimumZoomLevel() {
@@ -139,6 +191,9 @@ public class TilesOverlay extends SafeDrawOverlay {
 
         mTileLooper.loop(c, mTileProvider.getCacheKey(), zoomLevel, tileSizePx, viewPort,
                 pClipRect);
+        if (mAtlasInUse) {
+            mAtlas.draw(c, mAtlasGrid, tileSizePx * mCurrentZoomFactor, mWorldSize_2);
+        }
 
         // draw a cross at center in debug mode
         if (UtilConstants.DEBUGMODE) {
@@ -153,10 +208,25 @@ public class TilesOverlay extends SafeDrawOverlay {
     }
 
     private final TileLooper mTileLooper = new TileLooper() {
+        private int mRoundedZoom;
+        private int mTileSizePx;
+        // tiles looked up to draw the missing ones, kept across frames so that they and their
+        // cache keys are only built once, oldest first
+        private final LongHashMap<MapTile> mFallbackTiles =
+                new LongHashMap<MapTile>(MAXIMUM_FALLBACK_TILES);
+        private int mFallbackSourceId = -1;
+        // what the current missing tile is drawn from: its ancestor that many zoom levels up,
+        // or its children when the difference is -1
+        private final CacheableBitmapDrawable[] mFallbacks =
+                new CacheableBitmapDrawable[TileAtlas.MAXIMUM_FALLBACKS];
+        private int mFallbackZoomDifference;
+
         @Override
         public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
 
             final int roundedZoom = (int) Math.floor(pZoomLevel);
+            mRoundedZoom = roundedZoom;
+            mTileSizePx = pTileSizePx;
             if (roundedZoom != pZoomLevel) {
                 final int mapTileUpperBound = 1 << roundedZoom;
                 mCurrentZoomFactor =
@@ -164,6 +234,21 @@ public class TilesOverlay extends SafeDrawOverlay {
             } else {
                 mCurrentZoomFactor = 1.0f;
             }
+            // rank and cancel pending tile requests against what is drawn now
+            mTileProvider.setViewport(roundedZoom, mUpperLeft.x, mUpperLeft.y, mLowerRight.x,
+                    mLowerRight.y);
+            mAtlasGrid.set(mUpperLeft.x, mUpperLeft.y, mLowerRight.x, mLowerRight.y);
+            mAtlasInUse = mAtlas != null && mAtlas.prepare(roundedZoom,
+                    MapTile.getSourceId(mTileProvider.getCacheKey()), pTileSizePx,
+                    mAtlasGrid.width() + 1, mAtlasGrid.height() + 1);
+        }
+
+        @Override
+        public void finalizeLoop() {
+            super.finalizeLoop();
+            // drawn tiles have been requested, now ask for the ones likely to be drawn next
+            mPrefetcher.prefetch(mTileProvider.getCacheKey(), mRoundedZoom, mUpperLeft.x,
+                    mUpperLeft.y, mLowerRight.x, mLowerRight.y, mTileSizePx);
         }
 
         @Override
@@ -179,14 +264,30 @@ public class TilesOverlay extends SafeDrawOverlay {
             pTile.setTileRect(mTileRect);
             Drawable drawable = mTileProvider.getMapTile(pTile);
             if (drawable == null) {
+                final long fallbackKey = findFallback(pCacheKey, pTile);
+                if (fallbackKey >= 0) {
+                    if (mAtlasInUse) {
+                        // the cell is left as is if it was drawn from the same tiles before
+                        final Canvas cellCanvas = mAtlas.beginFallbackUpdate(pX, pY, fallbackKey,
+                                mFallbacks, mAtlasCellRect);
+                        if (cellCanvas != null) {
+                            drawFallbackTile(cellCanvas, mAtlasCellRect, pTile);
+                        }
+                    } else {
+                        drawFallbackTile(pCanvas, mTileRect, pTile);
+                    }
+                    return;
+                }
                 drawable = getLoadingTile();
             }
-            boolean isReusable = drawable instanceof CacheableBitmapDrawable;
+            if (drawable instanceof CacheableBitmapDrawable) {
+                mBeingUsedDrawables.add((CacheableBitmapDrawable) drawable);
+            }
 
-            if (drawable != null) {
-                if (isReusable) {
-                    mBeingUsedDrawables.add((CacheableBitmapDrawable) drawable);
-                }
+            if (mAtlasInUse) {
+                // drawn with the rest of the atlas once every tile is in it
+                mAtlas.update(pX, pY, drawable);
+            } else if (drawable != null) {
                 drawable.setBounds(mTileRect);
                 drawable.draw(pCanvas);
                 if (UtilConstants.DEBUGMODE) {
@@ -197,8 +298,138 @@ public class TilesOverlay extends SafeDrawOverlay {
                 }
             }
         }
+
+        /**
+         * Looks in the memory cache for what a missing tile can be drawn from: its closest
+         * ancestor, or else its children at the next zoom level. The looked up tiles come from
+         * {@link #getFallbackTile(String, int, int, int)}, so nothing is allocated once they
+         * have been looked up in a previous frame.
+         *
+         * @return the key of the ancestor or of the first child, or -1 if neither an ancestor
+         * nor a child is in the memory cache
+         */
+        private long findFallback(final String pCacheKey, final MapTile pTile) {
+            Arrays.fill(mFallbacks, null);
+            final int zoom = pTile.getZ();
+            final int maximumDifference = Math.min(zoom, MAXIMUM_FALLBACK_ZOOM_DIFFERENCE);
+            for (int diff = 1; diff <= maximumDifference; diff++) {
+                final MapTile ancestor = getFallbackTile(pCacheKey, zoom - diff,
+                        pTile.getX() >> diff, pTile.getY() >> diff);
+                mFallbacks[0] = getFallbackDrawable(ancestor);
+                if (mFallbacks[0] != null) {
+                    mFallbackZoomDifference = diff;
+                    return ancestor.getKey();
+                }
+            }
+
+            if (zoom >= mTileProvider.getMaximumZoomLevel()) {
+                return -1;
+            }
+            boolean found = false;
+            for (int i = 0; i < 4; i++) {
+                mFallbacks[i] = getFallbackDrawable(getFallbackTile(pCacheKey, zoom + 1,
+                        pTile.getX() * 2 + (i & 1), pTile.getY() * 2 + (i >> 1)));
+                found |= mFallbacks[i] != null;
+            }
+            mFallbackZoomDifference = -1;
+            return found ? MapTile.getKey(zoom + 1, pTile.getX() * 2, pTile.getY() * 2) : -1;
+        }
+
+        /**
+         * Draws a missing tile from what {@link #findFallback(String, MapTile)} found, scaling
+         * up the part of the ancestor the tile covers, or drawing the children over a loading
+         * tile.
+         *
+         * @param pCanvas the canvas to draw on
+         * @param pDest where to draw the tile
+         */
+        private void drawFallbackTile(final Canvas pCanvas, final Rect pDest,
+                final MapTile pTile) {
+            if (mFallbackZoomDifference > 0) {
+                final int diff = mFallbackZoomDifference;
+                final Bitmap bitmap = mFallbacks[0].getBitmap();
+                final int size = bitmap.getWidth() >> diff;
+                final int mask = (1 << diff) - 1;
+                final int left = (pTile.getX() & mask) * size;
+                final int top = (pTile.getY() & mask) * size;
+                mFallbackSrcRect.set(left, top, left + size, top + size);
+                pCanvas.drawBitmap(bitmap, mFallbackSrcRect, pDest, mFallbackPaint);
+                return;
+            }
+
+            // the children which aren't cached are drawn as loading
+            final Drawable loadingTile = getLoadingTile();
+            if (loadingTile != null) {
+                loadingTile.setBounds(pDest);
+                loadingTile.draw(pCanvas);
+            }
+            final int halfWidth = pDest.width() / 2;
+            final int halfHeight = pDest.height() / 2;
+            for (int i = 0; i < 4; i++) {
+                if (mFallbacks[i] == null) {
+                    continue;
+                }
+                final int dx = i & 1;
+                final int dy = i >> 1;
+                mFallbackDestRect.set(pDest.left + dx * halfWidth, pDest.top + dy * halfHeight,
+                        (dx == 0) ? pDest.left + halfWidth : pDest.right,
+                        (dy == 0) ? pDest.top + halfHeight : pDest.bottom);
+                pCanvas.drawBitmap(mFallbacks[i].getBitmap(), null, mFallbackDestRect,
+                        mFallbackPaint);
+            }
+        }
+
+        /**
+         * Gets a tile looked up to draw a missing one, reusing the instance of a previous frame
+         * when there is one. The oldest tiles are dropped past {@link #MAXIMUM_FALLBACK_TILES},
+         * and all of them when the source changes.
+         */
+        private MapTile getFallbackTile(final String pCacheKey, final int pZ, final int pX,
+                final int pY) {
+            final int sourceId = MapTile.getSourceId(pCacheKey);
+            if (sourceId != mFallbackSourceId) {
+                mFallbackTiles.clear();
+                mFallbackSourceId = sourceId;
+            }
+            final long key = MapTile.getKey(pZ, pX, pY);
+            MapTile tile = mFallbackTiles.get(key);
+            if (tile == null) {
+                if (mFallbackTiles.size() >= MAXIMUM_FALLBACK_TILES) {
+                    final Iterator<MapTile> eldest = mFallbackTiles.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+                tile = new MapTile(pCacheKey, pZ, pX, pY);
+                mFallbackTiles.put(key, tile);
+            }
+            return tile;
+        }
+
+        /**
+         * @return the drawable of a tile if it is in the memory cache, marked as used for this
+         * frame
+         */
+        private CacheableBitmapDrawable getFallbackDrawable(final MapTile pTile) {
+            final CacheableBitmapDrawable drawable = mTileProvider.getMapTileFromMemory(pTile);
+            if (drawable == null || !drawable.isBitmapValid()) {
+                return null;
+            }
+            drawable.setBeingUsed(true);
+            mBeingUsedDrawables.add(drawable);
+            return drawable;
+        }
     };
 
+    /**
+     * Number of zoom levels to go up looking for an ancestor of a missing tile
+     */
+    private static final int MAXIMUM_FALLBACK_ZOOM_DIFFERENCE = 4;
+
+    /**
+     * Number of tiles looked up to draw missing ones which are kept for the next frames
+     */
+    private static final int MAXIMUM_FALLBACK_TILES = 256;
+
     public int getLoadingBackgroundColor() {
         return mLoadingBackgroundColor;
     }
@@ -268,7 +499,9 @@ public class TilesOverlay extends SafeDrawOverlay {
     }
 
     /**
-     * Recreate the cache using scaled versions of the tiles currently in it
+     * Recreate the cache using scaled versions of the tiles currently in it, when zooming out.
+     * Missing tiles are drawn from their cached ancestors while zooming in, so nothing needs to
+     * be created then.
      *
      * @param pNewZoomLevel the zoom level that we need now
      * @param pOldZoomLevel the previous zoom level that we should get the tiles to rescale
@@ -277,7 +510,7 @@ public class TilesOverlay extends SafeDrawOverlay {
     public void rescaleCache(final float pNewZoomLevel, final float pOldZoomLevel,
             final Projection projection) {
 
-        if (mTileProvider.hasNoSource() || Math.floor(pNewZoomLevel) == Math.floor(pOldZoomLevel)) {
+        if (mTileProvider.hasNoSource() || Math.floor(pNewZoomLevel) >= Math.floor(pOldZoomLevel)) {
             return;
         }
 
@@ -291,9 +524,7 @@ public class TilesOverlay extends SafeDrawOverlay {
         final Rect viewPort =
                 GeometryMath.viewPortRectForTileDrawing(pNewZoomLevel, projection, null);
 
-        final ScaleTileLooper tileLooper =
-                pNewZoomLevel > pOldZoomLevel ? new ZoomInTileLooper(pOldZoomLevel)
-                        : new ZoomOutTileLooper(pOldZoomLevel);
+        final ScaleTileLooper tileLooper = new ZoomOutTileLooper(pOldZoomLevel);
         tileLooper.loop(null, mTileProvider.getCacheKey(), pNewZoomLevel, tileSize, viewPort, null);
 
         final long endMs = System.currentTimeMillis();
@@ -317,6 +548,8 @@ public class TilesOverlay extends SafeDrawOverlay {
         protected Rect mSrcRect;
         protected Rect mDestRect;
         protected Paint mDebugPaint;
+        // draws into the scaled tiles, pointed at a new bitmap for each of them
+        protected final Canvas mCanvas;
 
         public ScaleTileLooper(final float pOldZoomLevel) {
             mOldZoomLevel = pOldZoomLevel;
@@ -324,6 +557,7 @@ public class TilesOverlay extends SafeDrawOverlay {
             mSrcRect = new Rect();
             mDestRect = new Rect();
             mDebugPaint = new Paint();
+            mCanvas = new Canvas();
         }
 
         @Override
@@ -366,58 +600,6 @@ public class TilesOverlay extends SafeDrawOverlay {
                 final MapTile pTile, final int pX, final int pY);
     }
 
-    private class ZoomInTileLooper extends ScaleTileLooper {
-        public ZoomInTileLooper(final float pOldZoomLevel) {
-            super(pOldZoomLevel);
-        }
-
-        @Override
-        public void handleScaleTile(final String pCacheKey, final int pTileSizePx,
-                final MapTile pTile, final int pX, final int pY) {
-
-            // get the correct fraction of the tile from cache and scale up
-            final MapTile oldTile = new MapTile(pCacheKey, (int) Math.floor(mOldZoomLevel),
-                    (int) GeometryMath.rightShift(pX, mDiff),
-                    (int) GeometryMath.rightShift(pY, mDiff));
-            final Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
-
-            if (oldDrawable instanceof BitmapDrawable) {
-                if (oldDrawable instanceof CacheableBitmapDrawable) {
-                    ((CacheableBitmapDrawable) oldDrawable).setBeingUsed(true);
-                    mBeingUsedDrawables.add((CacheableBitmapDrawable) oldDrawable);
-                }
-                final int xx = (pX % (int) GeometryMath.leftShift(1, mDiff)) * mTileSize_2;
-                final int yy = (pY % (int) GeometryMath.leftShift(1, mDiff)) * mTileSize_2;
-                mSrcRect.set(xx, yy, xx + mTileSize_2, yy + mTileSize_2);
-                mDestRect.set(0, 0, pTileSizePx, pTileSizePx);
-
-                // Try to get a bitmap from the pool, otherwise allocate a new one
-                Bitmap bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx);
-
-                if (bitmap == null) {
-                    bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, Bitmap.Config.ARGB_8888);
-                }
-
-                final Canvas canvas = new Canvas(bitmap);
-                final boolean isReusable = oldDrawable instanceof CacheableBitmapDrawable;
-                boolean success = false;
-                if (!isReusable || ((CacheableBitmapDrawable) oldDrawable).isBitmapValid()) {
-                    final Bitmap oldBitmap = ((BitmapDrawable) oldDrawable).getBitmap();
-                    canvas.drawBitmap(oldBitmap, mSrcRect, mDestRect, null);
-                    success = true;
-                    /*
-                        Log.i(TAG, "Created scaled tile: " + pTile);
-                        mDebugPaint.setTextSize(40);
-                        canvas.drawText("scaled", 50, 50, mDebugPaint);
-                    */
-                }
-                if (success) {
-                    mNewTiles.put(pTile, bitmap);
-                }
-            }
-        }
-    }
-
     private class ZoomOutTileLooper extends ScaleTileLooper {
         private static final int MAX_ZOOM_OUT_DIFF = 4;
 
@@ -463,7 +645,8 @@ public class TilesOverlay extends SafeDrawOverlay {
                                     bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx,
                                             Bitmap.Config.ARGB_8888);
                                 }
-                                canvas = new Canvas(bitmap);
+                                canvas = mCanvas;
+                                canvas.setBitmap(bitmap);
                                 canvas.drawColor(Color.LTGRAY);
                             }
                             mDestRect.set(x * mTileSize_2, y * mTileSize_2, (x + 1) * mTileSize_2,
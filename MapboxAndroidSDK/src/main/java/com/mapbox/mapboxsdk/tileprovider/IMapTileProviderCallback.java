@@ -28,6 +28,13 @@ public interface IMapTileProviderCallback {
     void mapTileRequestExpiredTile(MapTileRequestState aState,
             final CacheableBitmapDrawable aDrawable);
 
+    /**
+     * The map tile request has been cancelled, because the tile isn't needed anymore.
+     *
+     * @param aState a state object
+     */
+    void mapTileRequestCancelled(MapTileRequestState aState);
+
     /**
      * Returns true if the network connection should be used, false if not.
      *
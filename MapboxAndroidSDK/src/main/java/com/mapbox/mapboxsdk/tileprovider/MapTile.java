@@ -1,6 +1,8 @@
 package com.mapbox.mapboxsdk.tileprovider;
 
 import android.graphics.Rect;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A map tile is distributed using the observer pattern. The tile is delivered by a tile provider
@@ -15,13 +17,21 @@ public class MapTile {
     public static final int MAPTILE_SUCCESS_ID = 0;
     public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
+    // Ids given to the cache keys of the tile sources, so that tiles can be compared without
+    // comparing strings
+    private static final ConcurrentHashMap<String, Integer> sSourceIds =
+            new ConcurrentHashMap<String, Integer>();
+
     // This class must be immutable because it's used as the key in the cache hash map
-    // (ie all the fields are final).
+    // (ie all the fields are final, path and cacheKey are only built lazily from them).
     private final int x;
     private final int y;
     private final int z;
-    private final String path;
-    private final String cacheKey;
+    private final long key;
+    private final String source;
+    private final int sourceId;
+    private String path;
+    private String cacheKey;
     private final int code;
     private Rect mTileRect;
 
@@ -33,11 +43,53 @@ public class MapTile {
         this.z = az;
         this.x = ax;
         this.y = ay;
-        this.path = String.valueOf(z) + "/" +
-                String.valueOf(x) + "/" +
-                String.valueOf(y);
-        this.cacheKey = aCacheKey + "/" + path;
-        this.code = ((17 * (37 + z)) * (37 * x)) * (37 + y);
+        this.key = getKey(az, ax, ay);
+        this.source = aCacheKey;
+        this.sourceId = getSourceId(aCacheKey);
+        this.code = LongHashMap.hash(key);
+    }
+
+    /**
+     * Packs the coordinates of a tile in a single value, for zoom levels up to 29.
+     *
+     * @return a key identifying the tile within its source
+     */
+    public static long getKey(final int az, final int ax, final int ay) {
+        return ((long) az << 58) | ((long) ax << 29) | ay;
+    }
+
+    /**
+     * @return a small id unique to the given source cache key for the life of the process
+     */
+    public static int getSourceId(final String aCacheKey) {
+        final String source = String.valueOf(aCacheKey);
+        final Integer id = sSourceIds.get(source);
+        if (id != null) {
+            return id;
+        }
+        synchronized (sSourceIds) {
+            final Integer newId = sSourceIds.size();
+            final Integer previous = sSourceIds.putIfAbsent(source, newId);
+            return (previous != null) ? previous : newId;
+        }
+    }
+
+    /**
+     * @return the packed coordinates of this tile, see {@link #getKey(int, int, int)}
+     */
+    public long getKey() {
+        return key;
+    }
+
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * @return whether this tile is the given tile of the given source, without building strings
+     */
+    public boolean is(final int aSourceId, final int az, final int ax, final int ay) {
+        return sourceId == aSourceId && key == getKey(az, ax, ay);
     }
 
     public int getZ() {
@@ -53,12 +105,23 @@ public class MapTile {
     }
 
     public String getCacheKey() {
-        return cacheKey;
+        // racy but safe, the same string is built by any thread
+        String result = cacheKey;
+        if (result == null) {
+            result = source + "/" + toString();
+            cacheKey = result;
+        }
+        return result;
     }
 
     @Override
     public String toString() {
-        return path;
+        String result = path;
+        if (result == null) {
+            result = String.valueOf(z) + "/" + String.valueOf(x) + "/" + String.valueOf(y);
+            path = result;
+        }
+        return result;
     }
 
     @Override
@@ -7,6 +7,7 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Environment;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
@@ -17,11 +18,19 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * A wrapper around a BitmapLruCache that stores tiles on disk in order
- * to improve performance and provide offline content.
+ * to improve performance and provide offline content. Tiles are kept decoded in memory, while the
+ * disk tier keeps the original compressed bytes as they were downloaded.
  */
 public class MapTileCache implements TileLayerConstants {
 
-    protected static BitmapLruCache sCachedTiles = null;
+    protected static volatile BitmapLruCache sCachedTiles = null;
+    // Guards the creation of sCachedTiles, two disk caches on the same directory would corrupt
+    // its journal
+    private static final Object sCacheLock = new Object();
+    // Expiration times of the tiles which have one, by cache key. The memory cache only holds
+    // drawables, so this is what tells a stale tile in memory apart from a fresh one.
+    private static final LruCache<String, Long> sTileExpirations =
+            new LruCache<String, Long>(CACHE_TILE_EXPIRATIONS_MAXIMUM);
     private Context context;
     static final String TAG = "MapTileCache";
     private static final String DISK_CACHE_SUBDIR = "mapbox_tiles_cache";
@@ -38,28 +47,34 @@ public class MapTileCache implements TileLayerConstants {
 
     /**
      * Get the BitmapLruCache that belongs to this tile cache, creating it first
-     * if there isn't one yet.
+     * if there isn't one yet. It is shared by every tile cache, and safe to call from any thread.
      *
      * @return BitmapLruCache the cache
      */
     protected BitmapLruCache getCache() {
-        if (this.sCachedTiles == null) {
-            File cacheDir = getDiskCacheDir(context, DISK_CACHE_SUBDIR);
-            if (!cacheDir.exists()) {
-                if (cacheDir.mkdirs()) {
-                    Log.d(TAG, "creating cacheDir " + cacheDir);
-                } else {
-                    Log.e(TAG, "can't create cacheDir " + cacheDir);
+        BitmapLruCache cache = sCachedTiles;
+        if (cache != null) {
+            return cache;
+        }
+        synchronized (sCacheLock) {
+            if (sCachedTiles == null) {
+                File cacheDir = getDiskCacheDir(context, DISK_CACHE_SUBDIR);
+                if (!cacheDir.exists()) {
+                    if (cacheDir.mkdirs()) {
+                        Log.d(TAG, "creating cacheDir " + cacheDir);
+                    } else {
+                        Log.e(TAG, "can't create cacheDir " + cacheDir);
+                    }
                 }
+                sCachedTiles = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
+                        .setMemoryCacheMaxSize(BitmapUtils.calculateMemoryCacheSize(context))
+                        .setDiskCacheEnabled(true)
+                        .setDiskCacheMaxSize(this.mMaximumCacheSize)
+                        .setDiskCacheLocation(cacheDir)
+                        .build();
             }
-            this.sCachedTiles = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
-                    .setMemoryCacheMaxSize(BitmapUtils.calculateMemoryCacheSize(context))
-                    .setDiskCacheEnabled(false)
-                    .setDiskCacheMaxSize(this.mMaximumCacheSize)
-                    .setDiskCacheLocation(cacheDir)
-                    .build();
+            return sCachedTiles;
         }
-        return this.sCachedTiles;
     }
 
     /**
@@ -89,11 +104,195 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().getFromDiskCache(getCacheKey(aTile), null);
     }
 
+    /**
+     * Get a tile from the disk cache along with the HTTP caching information stored with it, both
+     * read from a single snapshot of the disk cache entry. This should not be called from the main
+     * thread.
+     *
+     * @param aTile the tile
+     * @return the tile and its raw caching information, or null if the tile isn't on disk
+     */
+    public BitmapLruCache.DiskCacheEntry getMapTileEntryFromDisk(final MapTile aTile) {
+        return getCache().getEntryFromDiskCache(getCacheKey(aTile), null);
+    }
+
     public CacheableBitmapDrawable putTileStream(final MapTile aTile, final InputStream inputStream,
             final BitmapFactory.Options decodeOpts) {
         return getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
     }
 
+    /**
+     * Decode the original compressed bytes of a tile into the memory cache and store those same
+     * bytes in the disk cache, so that they don't have to be re-encoded. This should not be
+     * called from the main thread.
+     *
+     * @param aTile the tile
+     * @param data the tile image as it was downloaded (PNG, JPEG...)
+     * @param decodeOpts optional decoding options
+     * @return the drawable for the tile, or null if the data couldn't be decoded
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final byte[] data,
+            final BitmapFactory.Options decodeOpts) {
+        return getCache().put(getCacheKey(aTile), data, decodeOpts);
+    }
+
+    /**
+     * Decode the original compressed bytes of a tile into the memory cache and store those same
+     * bytes in the disk cache along with their HTTP caching information. This should not be
+     * called from the main thread.
+     *
+     * @param aTile the tile
+     * @param data the tile image as it was downloaded (PNG, JPEG...)
+     * @param decodeOpts optional decoding options
+     * @param metadata the caching information of the download, can be null
+     * @return the drawable for the tile, or null if the data couldn't be decoded
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final byte[] data,
+            final BitmapFactory.Options decodeOpts, final MapTileMetadata metadata) {
+        return putTileData(aTile, data, 0, data.length, decodeOpts, metadata);
+    }
+
+    /**
+     * Decode the original compressed bytes of a tile, held in a part of a larger buffer, into
+     * the memory cache and store those same bytes in the disk cache along with their HTTP caching
+     * information. The bytes aren't copied. This should not be called from the main thread.
+     *
+     * @param aTile the tile
+     * @param data the buffer holding the tile image as it was downloaded (PNG, JPEG...)
+     * @param offset the index of the first byte of the image in the buffer
+     * @param length the length of the image
+     * @param decodeOpts optional decoding options
+     * @param metadata the caching information of the download, can be null
+     * @return the drawable for the tile, or null if the data couldn't be decoded
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final byte[] data,
+            final int offset, final int length, final BitmapFactory.Options decodeOpts,
+            final MapTileMetadata metadata) {
+        final CacheableBitmapDrawable result =
+                putTileInMemoryCache(aTile, decodeBitmap(data, offset, length, decodeOpts));
+        if (result != null) {
+            getCache().putInDiskCache(getCacheKey(aTile), data, offset, length,
+                    metadata != null ? metadata.toString() : null);
+            setTileExpiration(aTile, metadata);
+        }
+        return result;
+    }
+
+    /**
+     * Decode the compressed bytes of a tile, held in a part of a larger buffer, into the memory
+     * cache only, remembering when it expires. Used for tiles the server forbids storing.
+     *
+     * @param aTile the tile
+     * @param data the buffer holding the compressed tile image
+     * @param offset the index of the first byte of the image in the buffer
+     * @param length the length of the image
+     * @param decodeOpts optional decoding options
+     * @param metadata the caching information of the download, can be null
+     * @return the drawable for the tile, or null if the data couldn't be decoded
+     */
+    public CacheableBitmapDrawable putTileDataInMemoryCache(final MapTile aTile,
+            final byte[] data, final int offset, final int length,
+            final BitmapFactory.Options decodeOpts, final MapTileMetadata metadata) {
+        final CacheableBitmapDrawable result =
+                putTileInMemoryCache(aTile, decodeBitmap(data, offset, length, decodeOpts));
+        if (result != null) {
+            setTileExpiration(aTile, metadata);
+        }
+        return result;
+    }
+
+    /**
+     * Decode the compressed bytes of a tile into the memory cache only. Used for tiles which
+     * already live on the device, like the ones coming from an MBTiles file.
+     *
+     * @param aTile the tile
+     * @param data the compressed tile image
+     * @param decodeOpts optional decoding options
+     * @return the drawable for the tile, or null if the data couldn't be decoded
+     */
+    public CacheableBitmapDrawable putTileDataInMemoryCache(final MapTile aTile,
+            final byte[] data, final BitmapFactory.Options decodeOpts) {
+        return putTileInMemoryCache(aTile, decodeBitmap(data, decodeOpts));
+    }
+
+    /**
+     * Store the compressed bytes of a tile in the disk cache only, without decoding them. This
+     * should not be called from the main thread.
+     *
+     * @param aTile the tile
+     * @param data the compressed tile image
+     * @return true if the tile was written to the disk cache
+     */
+    public boolean putTileDataInDiskCache(final MapTile aTile, final byte[] data) {
+        return getCache().putInDiskCache(getCacheKey(aTile), data);
+    }
+
+    /**
+     * Store the compressed bytes of a tile in the disk cache only, along with their HTTP caching
+     * information. This should not be called from the main thread.
+     *
+     * @param aTile the tile
+     * @param data the compressed tile image
+     * @param metadata the caching information of the download, can be null
+     * @return true if the tile was written to the disk cache
+     */
+    public boolean putTileDataInDiskCache(final MapTile aTile, final byte[] data,
+            final MapTileMetadata metadata) {
+        return getCache().putInDiskCache(getCacheKey(aTile), data,
+                metadata != null ? metadata.toString() : null);
+    }
+
+    /**
+     * Get the HTTP caching information stored with a tile in the disk cache. This should not be
+     * called from the main thread.
+     *
+     * @param aTile the tile
+     * @return the caching information, or null if the tile isn't on disk or has none
+     */
+    public MapTileMetadata getTileMetadata(final MapTile aTile) {
+        return MapTileMetadata.parse(getCache().getDiskCacheMetadata(getCacheKey(aTile)));
+    }
+
+    /**
+     * Replace the HTTP caching information of a tile in the disk cache, for instance once it has
+     * been revalidated. This should not be called from the main thread.
+     *
+     * @param aTile the tile
+     * @param metadata the new caching information
+     * @return true if the tile is on disk and its caching information was written
+     */
+    public boolean putTileMetadata(final MapTile aTile, final MapTileMetadata metadata) {
+        setTileExpiration(aTile, metadata);
+        return getCache().putDiskCacheMetadata(getCacheKey(aTile), metadata.toString());
+    }
+
+    /**
+     * Remember when the copy of a tile in memory expires.
+     *
+     * @param aTile the tile
+     * @param metadata the caching information of the tile, can be null if it has none
+     */
+    public void setTileExpiration(final MapTile aTile, final MapTileMetadata metadata) {
+        if (metadata != null && metadata.getExpiresAt() > 0) {
+            sTileExpirations.put(getCacheKey(aTile), metadata.getExpiresAt());
+        } else {
+            sTileExpirations.remove(getCacheKey(aTile));
+        }
+    }
+
+    /**
+     * Checks whether the copy of a tile in memory has expired. This is safe to call from the
+     * main thread.
+     *
+     * @param aTile the tile
+     * @param now the current time, in milliseconds
+     * @return true if the tile expired and should be refreshed
+     */
+    public boolean isTileExpired(final MapTile aTile, final long now) {
+        final Long expiresAt = sTileExpirations.get(getCacheKey(aTile));
+        return expiresAt != null && now >= expiresAt;
+    }
+
     public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap) {
         return getCache().put(getCacheKey(aTile), bitmap);
     }
@@ -185,10 +384,30 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().getBitmapFromRemoved(width, height);
     }
 
+    /**
+     * @return how many times a thread had to wait for another one to access the memory cache
+     */
+    public long getMemoryCacheContentionCount() {
+        return getCache().getMemoryCacheContentionCount();
+    }
+
+    /**
+     * @return how many times the memory cache was accessed
+     */
+    public long getMemoryCacheAccessCount() {
+        return getCache().getMemoryCacheAccessCount();
+    }
+
     public Bitmap decodeBitmap(final byte[] data, final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(new BitmapLruCache.ByteArrayInputStreamProvider(data), opts);
     }
 
+    public Bitmap decodeBitmap(final byte[] data, final int offset, final int length,
+            final BitmapFactory.Options opts) {
+        return getCache().decodeBitmap(
+                new BitmapLruCache.ByteArrayInputStreamProvider(data, offset, length), opts);
+    }
+
     public Bitmap decodeBitmap(final BitmapLruCache.InputStreamProvider ip,
             final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(ip, opts);
@@ -2,16 +2,18 @@ package com.mapbox.mapboxsdk.tileprovider;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileFilesystemProvider;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
 import com.mapbox.mapboxsdk.tileprovider.modules.NetworkAvailabilityCheck;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.util.ConcurrentLongHashMap;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -27,17 +29,36 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
  * asynchronous tile provider is called in the chain. If there are no more asynchronous tile
  * providers in the chain, then the failure result is passed to the base class. The
  * {@link MapTileLayerArray} provides a mechanism so that only one unique tile-request can be in
- * the map tile request chain at a time.
+ * the map tile request chain at a time. When a tile provider writes the tiles it loads to the
+ * disk cache, the chain starts with a {@link MapTileFilesystemProvider} reading it, followed by
+ * the tile providers.
  *
  * @author Marc Kurtz
  */
 public class MapTileLayerArray extends MapTileLayerBase {
 
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
+    /**
+     * Requests going through the provider chain, keyed by {@link MapTile#getKey()}. It is
+     * checked for every drawn tile, without locking.
+     */
+    protected final ConcurrentLongHashMap<MapTileRequestState> mWorking;
 
     protected final List<MapTileModuleLayerBase> mTileProviderList;
 
-    protected final List<MapTile> mUnaccessibleTiles;
+    protected final MapTileFilesystemProvider mFileSystemProvider;
+
+    /**
+     * Tiles which failed to load while offline, keyed by {@link MapTile#getKey()}. At most
+     * {@link #UNACCESSIBLE_TILES_MAXIMUM_COUNT} are kept.
+     */
+    protected final ConcurrentLongHashMap<MapTile> mUnaccessibleTiles;
+
+    /**
+     * When stale tiles whose refresh failed may be refreshed again, in
+     * {@link SystemClock#elapsedRealtime()} milliseconds, keyed by {@link MapTile#getKey()}. At
+     * most {@link #TILE_REFRESH_RETRY_MAXIMUM_COUNT} are kept.
+     */
+    protected final ConcurrentLongHashMap<Long> mRefreshRetryTimes;
 
     protected final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
 
@@ -62,11 +83,14 @@ public class MapTileLayerArray extends MapTileLayerBase {
             final MapTileModuleLayerBase[] pTileProviderArray) {
         super(context, pTileSource);
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mUnaccessibleTiles = new ArrayList<MapTile>();
+        mWorking = new ConcurrentLongHashMap<MapTileRequestState>();
+        mUnaccessibleTiles = new ConcurrentLongHashMap<MapTile>();
+        mRefreshRetryTimes = new ConcurrentLongHashMap<Long>();
 
         mNetworkAvailabilityCheck = new NetworkAvailabilityCheck(context);
 
+        mFileSystemProvider = new MapTileFilesystemProvider(mTileCache);
+
         mTileProviderList = new ArrayList<MapTileModuleLayerBase>();
         if (pTileProviderArray != null) {
             mCacheKey = pTileProviderArray[0].getCacheKey();
@@ -85,10 +109,9 @@ public class MapTileLayerArray extends MapTileLayerBase {
                 tileProvider.detach();
             }
         }
+        mFileSystemProvider.detach();
 
-        synchronized (mWorking) {
-            mWorking.clear();
-        }
+        mWorking.clear();
     }
 
     private boolean networkAvailable() {
@@ -102,10 +125,10 @@ public class MapTileLayerArray extends MapTileLayerBase {
      * @return whether the tile is unavailable
      */
     private boolean tileUnavailable(final MapTile pTile) {
-        if (mUnaccessibleTiles.size() > 0) {
+        if (!mUnaccessibleTiles.isEmpty()) {
             if (networkAvailable()) {
                 mUnaccessibleTiles.clear();
-            } else if (mUnaccessibleTiles.contains(pTile)) {
+            } else if (mUnaccessibleTiles.containsKey(pTile.getKey())) {
                 return true;
             }
         }
@@ -118,81 +141,190 @@ public class MapTileLayerArray extends MapTileLayerBase {
             if (DEBUG_TILE_PROVIDERS) {
                 Log.i(TAG, "MapTileLayerArray.getMapTile() tileUnavailable: " + pTile);
             }
+            // an expired tile is still better than nothing while offline
+            final CacheableBitmapDrawable offlineDrawable = mTileCache.getMapTileFromMemory(pTile);
+            if (offlineDrawable != null && offlineDrawable.isBitmapValid()) {
+                offlineDrawable.setBeingUsed(true);
+                return offlineDrawable;
+            }
             return null;
         }
-        final CacheableBitmapDrawable tileDrawable = mTileCache.getMapTileFromMemory(pTile);
+        final CacheableBitmapDrawable tileDrawable = getFreshMapTileFromMemory(pTile);
         if (tileDrawable != null && tileDrawable.isBitmapValid() &&
                 !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
             tileDrawable.setBeingUsed(true);
             return tileDrawable;
         } else {
-            boolean alreadyInProgress = false;
-            synchronized (mWorking) {
-                alreadyInProgress = mWorking.containsKey(pTile);
+            // a stale tile is drawn right away while it is refreshed in the background
+            final boolean stale = tileDrawable != null && tileDrawable.isBitmapValid();
+            if (!stale || canRefresh(pTile)) {
+                requestMapTileAsync(pTile, stale);
             }
+            if (stale) {
+                tileDrawable.setBeingUsed(true);
+                return tileDrawable;
+            }
+            return null;
+        }
+    }
 
-            if (!alreadyInProgress) {
-                if (DEBUG_TILE_PROVIDERS) {
-                    Log.i(TAG,
-                            "MapTileLayerArray.getMapTile() requested but not in cache, trying from async providers: "
-                                    + pTile
-                    );
-                }
+    /**
+     * Gets a tile from the memory cache, marking it as expired if its freshness ran out since it
+     * was loaded.
+     */
+    private CacheableBitmapDrawable getFreshMapTileFromMemory(final MapTile pTile) {
+        final CacheableBitmapDrawable tileDrawable = mTileCache.getMapTileFromMemory(pTile);
+        if (tileDrawable != null && !BitmapUtils.isCacheDrawableExpired(tileDrawable)
+                && mTileCache.isTileExpired(pTile, System.currentTimeMillis())) {
+            BitmapUtils.setCacheDrawableExpired(tileDrawable);
+        }
+        return tileDrawable;
+    }
 
-                final MapTileRequestState state;
+    @Override
+    public void prefetchMapTile(final MapTile pTile) {
+        if (tileUnavailable(pTile)) {
+            return;
+        }
+        final CacheableBitmapDrawable tileDrawable = getFreshMapTileFromMemory(pTile);
+        if (tileDrawable != null && tileDrawable.isBitmapValid() &&
+                !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
+            return;
+        }
+        final boolean stale = tileDrawable != null && tileDrawable.isBitmapValid();
+        if (!stale || canRefresh(pTile)) {
+            requestMapTileAsync(pTile, stale);
+        }
+    }
 
-                synchronized (mTileProviderList) {
-                    final MapTileModuleLayerBase[] providerArray =
-                            new MapTileModuleLayerBase[mTileProviderList.size()];
-                    state = new MapTileRequestState(pTile, mTileProviderList.toArray(providerArray),
-                            this);
-                }
+    /**
+     * Checks whether a stale tile may be refreshed, which it can't for a while after a refresh
+     * of it failed.
+     */
+    private boolean canRefresh(final MapTile pTile) {
+        if (mRefreshRetryTimes.isEmpty()) {
+            return true;
+        }
+        final Long retryTime = mRefreshRetryTimes.get(pTile.getKey());
+        if (retryTime == null) {
+            return true;
+        }
+        if (SystemClock.elapsedRealtime() < retryTime) {
+            return false;
+        }
+        mRefreshRetryTimes.remove(pTile.getKey());
+        return true;
+    }
 
-                synchronized (mWorking) {
-                    // Check again
-                    alreadyInProgress = mWorking.containsKey(pTile);
-                    if (alreadyInProgress) {
-                        return null;
-                    }
-                    mWorking.put(pTile, state);
-                }
+    /**
+     * Sends a tile request through the asynchronous tile request chain, unless the tile is
+     * already in it.
+     *
+     * @param pTile the tile to request
+     * @param pRefresh whether a stale copy of the tile is already drawn, in which case the
+     * request comes after the ones for missing tiles
+     */
+    private void requestMapTileAsync(final MapTile pTile, final boolean pRefresh) {
+        if (!mWorking.containsKey(pTile.getKey())) {
+            if (DEBUG_TILE_PROVIDERS) {
+                Log.i(TAG,
+                        "MapTileLayerArray.getMapTile() requested but not in cache, trying from async providers: "
+                                + pTile
+                );
+            }
 
-                final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
-                if (provider != null) {
-                    provider.loadMapTileAsync(state);
-                } else {
-                    mapTileRequestFailed(state);
+            final MapTileRequestState state;
+
+            synchronized (mTileProviderList) {
+                // the disk cache only goes first if one of the providers fills it
+                boolean usesDiskCache = false;
+                for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                    usesDiskCache |= tileProvider.getUsesDiskCache();
+                }
+                final int offset = usesDiskCache ? 1 : 0;
+                final MapTileModuleLayerBase[] providerArray =
+                        new MapTileModuleLayerBase[mTileProviderList.size() + offset];
+                if (usesDiskCache) {
+                    providerArray[0] = mFileSystemProvider;
+                }
+                for (int i = 0; i < mTileProviderList.size(); i++) {
+                    providerArray[i + offset] = mTileProviderList.get(i);
                 }
+                state = new MapTileRequestState(pTile, providerArray, this);
+            }
+            state.setRefresh(pRefresh);
+
+            // Check again
+            if (mWorking.putIfAbsent(pTile.getKey(), state) != null) {
+                return;
+            }
+
+            final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
+            if (provider != null) {
+                provider.loadMapTileAsync(state);
+            } else {
+                mapTileRequestFailed(state);
             }
-            return tileDrawable;
         }
     }
 
     @Override
     public void mapTileRequestCompleted(final MapTileRequestState aState,
             final Drawable aDrawable) {
-        synchronized (mWorking) {
-            mWorking.remove(aState.getMapTile());
+        mWorking.remove(aState.getMapTile().getKey());
+        if (aState.isRefresh() && !mRefreshRetryTimes.isEmpty()) {
+            mRefreshRetryTimes.remove(aState.getMapTile().getKey());
         }
         super.mapTileRequestCompleted(aState, aDrawable);
     }
 
     @Override
     public void mapTileRequestFailed(final MapTileRequestState aState) {
+        if (aState.isCancelled()) {
+            mapTileRequestCancelled(aState);
+            return;
+        }
         final MapTileModuleLayerBase nextProvider = findNextAppropriateProvider(aState);
         if (nextProvider != null) {
             nextProvider.loadMapTileAsync(aState);
         } else {
-            synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
-            }
+            mWorking.remove(aState.getMapTile().getKey());
             if (!networkAvailable()) {
-                mUnaccessibleTiles.add(aState.getMapTile());
+                if (mUnaccessibleTiles.size() >= UNACCESSIBLE_TILES_MAXIMUM_COUNT) {
+                    // start over rather than track which tiles are the oldest, the ones still
+                    // in view will fail again soon enough
+                    mUnaccessibleTiles.clear();
+                }
+                mUnaccessibleTiles.put(aState.getMapTile().getKey(), aState.getMapTile());
+            }
+            if (aState.isRefresh()) {
+                // the stale tile stays drawn, wait before trying to refresh it again
+                if (mRefreshRetryTimes.size() >= TILE_REFRESH_RETRY_MAXIMUM_COUNT) {
+                    mRefreshRetryTimes.clear();
+                }
+                mRefreshRetryTimes.put(aState.getMapTile().getKey(),
+                        SystemClock.elapsedRealtime() + TILE_REFRESH_RETRY_DELAY_MS);
             }
             super.mapTileRequestFailed(aState);
         }
     }
 
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState aState) {
+        mWorking.remove(aState.getMapTile().getKey());
+        super.mapTileRequestCancelled(aState);
+    }
+
+    @Override
+    protected void onViewportChanged(final MapTileViewport pViewport) {
+        mFileSystemProvider.setViewport(pViewport);
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                tileProvider.setViewport(pViewport);
+            }
+        }
+    }
+
     @Override
     public void mapTileRequestExpiredTile(MapTileRequestState aState,
             CacheableBitmapDrawable aDrawable) {
@@ -205,9 +337,7 @@ public class MapTileLayerArray extends MapTileLayerBase {
         if (nextProvider != null) {
             nextProvider.loadMapTileAsync(aState);
         } else {
-            synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
-            }
+            mWorking.remove(aState.getMapTile().getKey());
         }
     }
 
@@ -243,6 +373,9 @@ public class MapTileLayerArray extends MapTileLayerBase {
     }
 
     public boolean getProviderExists(final MapTileModuleLayerBase provider) {
+        if (provider == mFileSystemProvider) {
+            return true;
+        }
         synchronized (mTileProviderList) {
             return mTileProviderList.contains(provider);
         }
@@ -274,6 +407,7 @@ public class MapTileLayerArray extends MapTileLayerBase {
     public void setTileSource(final ITileLayer aTileSource) {
         super.setTileSource(aTileSource);
         mUnaccessibleTiles.clear();
+        mRefreshRetryTimes.clear();
         synchronized (mTileProviderList) {
             mTileProviderList.clear();
         }
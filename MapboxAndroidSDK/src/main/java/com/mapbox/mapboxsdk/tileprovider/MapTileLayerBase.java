@@ -36,6 +36,8 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
     private ITileLayer mTileSource;
     protected String mCacheKey = "";
 
+    private volatile MapTileViewport mViewport;
+
     /**
      * Attempts to get a Drawable that represents a {@link MapTile}. If the tile is not immediately
      * available this will return null and attempt to get the tile from known tile sources for
@@ -49,6 +51,17 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
 
     public abstract void detach();
 
+    /**
+     * Requests a tile which isn't drawn yet but probably will be soon, so that it is in the cache
+     * by then. Unlike {@link #getMapTile(MapTile)} this never hands out a drawable. Does nothing
+     * by default.
+     *
+     * @param pTile the tile to prefetch
+     */
+    public void prefetchMapTile(final MapTile pTile) {
+        // Do nothing by default
+    }
+
     /**
      * Gets the minimum zoom level this tile provider can provide
      *
@@ -219,6 +232,59 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         }
     }
 
+    /**
+     * Called by implementation class methods indicating that the request was dropped because the
+     * tile isn't needed anymore. Nothing is sent to the handler since there is nothing to draw,
+     * unless the tile came back into view while its request was being aborted.
+     *
+     * @param pState the map tile request state object
+     */
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState pState) {
+        final MapTileViewport viewport = mViewport;
+        if (mTileRequestCompleteHandler != null && viewport != null
+                && viewport.contains(pState.getMapTile())) {
+            // redraw so that the tile gets requested again
+            mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+        }
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.d(TAG, "MapTileLayerBase.mapTileRequestCancelled(): " + pState.getMapTile());
+        }
+    }
+
+    /**
+     * Sets the range of tiles currently drawn, so that pending requests can be ranked and
+     * cancelled accordingly. This is called on every draw, so it does nothing unless the range
+     * changed.
+     *
+     * @param pZoom the zoom level of the drawn tiles
+     * @param pLeft the leftmost tile column, not wrapped around the world
+     * @param pTop the topmost tile row
+     * @param pRight the rightmost tile column, not wrapped around the world
+     * @param pBottom the bottommost tile row
+     */
+    public void setViewport(final int pZoom, final int pLeft, final int pTop, final int pRight,
+            final int pBottom) {
+        if (mViewport != null && mViewport.matches(pZoom, pLeft, pTop, pRight, pBottom)) {
+            return;
+        }
+        mViewport = new MapTileViewport(pZoom, pLeft, pTop, pRight, pBottom);
+        onViewportChanged(mViewport);
+    }
+
+    public MapTileViewport getViewport() {
+        return mViewport;
+    }
+
+    /**
+     * Called when the range of drawn tiles changed.
+     *
+     * @param pViewport the new viewport
+     */
+    protected void onViewportChanged(final MapTileViewport pViewport) {
+        // Do nothing by default
+    }
+
     private void putTileIntoCacheInternal(final MapTile pTile, final Drawable pDrawable) {
         mTileCache.putTile(pTile, pDrawable);
     }
@@ -255,7 +321,11 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
             return;
         }
         CacheableBitmapDrawable drawable = mTileCache.getMapTileFromMemory(pTile);
-        if (drawable == null || BitmapUtils.isCacheDrawableExpired(drawable)) {
+        if (drawable != null && drawable.getBitmap() == bitmap) {
+            // already cached, like the expired tiles of the disk cache, replacing the drawable
+            // would let the cache recycle the bitmap
+            BitmapUtils.setCacheDrawableExpired(drawable);
+        } else if (drawable == null || BitmapUtils.isCacheDrawableExpired(drawable)) {
             drawable = mTileCache.putTileInMemoryCache(pTile, bitmap);
             BitmapUtils.setCacheDrawableExpired(drawable);
         }
@@ -61,6 +61,7 @@ public class MapTileLayerBasic extends MapTileLayerArray implements IMapTileProv
         if (hasNoSource()) {
             mCacheKey = pTileSource.getCacheKey();
         }
+        downloaderProvider.setViewport(getViewport());
         synchronized (mTileProviderList) {
             mTileProviderList.add(downloaderProvider);
         }
@@ -0,0 +1,179 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.text.TextUtils;
+import java.net.HttpURLConnection;
+
+/**
+ * The HTTP caching information of a downloaded tile: the validators the server sent with it, used
+ * to revalidate the tile with a conditional request once it expires, and when it was fetched and
+ * expires. It is stored next to the tile in the disk cache, unless the server forbids storing
+ * the tile.
+ * This class is immutable.
+ */
+public class MapTileMetadata {
+
+    private static final String SEPARATOR = "\n";
+
+    private final String mETag;
+    private final String mLastModified;
+    private final long mFetchedAt;
+    private final long mExpiresAt;
+    private final boolean mNoStore;
+
+    /**
+     * @param aETag the ETag header of the response, can be null
+     * @param aLastModified the Last-Modified header of the response, can be null
+     * @param aFetchedAt when the tile was fetched or last revalidated, in milliseconds
+     * @param aExpiresAt when the tile expires, in milliseconds, or 0 if it never does
+     */
+    public MapTileMetadata(final String aETag, final String aLastModified, final long aFetchedAt,
+            final long aExpiresAt) {
+        this(aETag, aLastModified, aFetchedAt, aExpiresAt, false);
+    }
+
+    /**
+     * @param aETag the ETag header of the response, can be null
+     * @param aLastModified the Last-Modified header of the response, can be null
+     * @param aFetchedAt when the tile was fetched or last revalidated, in milliseconds
+     * @param aExpiresAt when the tile expires, in milliseconds, or 0 if it never does
+     * @param aNoStore whether the tile must only be kept in memory
+     */
+    public MapTileMetadata(final String aETag, final String aLastModified, final long aFetchedAt,
+            final long aExpiresAt, final boolean aNoStore) {
+        this.mETag = TextUtils.isEmpty(aETag) ? null : aETag;
+        this.mLastModified = TextUtils.isEmpty(aLastModified) ? null : aLastModified;
+        this.mFetchedAt = aFetchedAt;
+        this.mExpiresAt = aExpiresAt;
+        this.mNoStore = aNoStore;
+    }
+
+    /**
+     * Reads the caching information of an HTTP response.
+     *
+     * @param aConnection a connection whose response headers have been received
+     * @param aFetchedAt when the response was received, in milliseconds
+     * @return the caching information of the response
+     */
+    public static MapTileMetadata fromConnection(final HttpURLConnection aConnection,
+            final long aFetchedAt) {
+        final String cacheControl = aConnection.getHeaderField("Cache-Control");
+        return new MapTileMetadata(aConnection.getHeaderField("ETag"),
+                aConnection.getHeaderField("Last-Modified"), aFetchedAt,
+                getExpiration(aConnection, aFetchedAt),
+                cacheControl != null && cacheControl.toLowerCase().contains("no-store"));
+    }
+
+    /**
+     * Computes when a response expires from its Cache-Control header, or its Expires header if
+     * it has no max-age. The expiration can be the fetch time or earlier, for responses which
+     * must be revalidated every time. No-store isn't about freshness, it only keeps the tile off
+     * the disk.
+     *
+     * @return the expiration time in milliseconds, or 0 if the response doesn't say
+     */
+    private static long getExpiration(final HttpURLConnection aConnection, final long aFetchedAt) {
+        final String cacheControl = aConnection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache")) {
+                    return aFetchedAt;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        return aFetchedAt
+                                + Long.parseLong(directive.substring("max-age=".length())) * 1000;
+                    } catch (final NumberFormatException e) {
+                        // ignore an invalid max-age, like browsers do
+                    }
+                }
+            }
+        }
+        return Math.max(aConnection.getExpiration(), 0);
+    }
+
+    /**
+     * Reads caching information stored by {@link #toString()}.
+     *
+     * @param aValue the stored value, can be null
+     * @return the caching information, or null if there is none
+     */
+    public static MapTileMetadata parse(final String aValue) {
+        if (TextUtils.isEmpty(aValue)) {
+            return null;
+        }
+        final String[] fields = aValue.split(SEPARATOR, -1);
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            return new MapTileMetadata(fields[0], fields[1], Long.parseLong(fields[2]),
+                    Long.parseLong(fields[3]));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public long getFetchedAt() {
+        return mFetchedAt;
+    }
+
+    public long getExpiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * Whether the server forbids storing the tile, in which case it is only kept in memory. This
+     * isn't stored, since such tiles never reach the disk cache.
+     */
+    public boolean isNoStore() {
+        return mNoStore;
+    }
+
+    /**
+     * Whether the tile can be revalidated with a conditional request.
+     */
+    public boolean hasValidators() {
+        return mETag != null || mLastModified != null;
+    }
+
+    /**
+     * Whether the tile has expired and should be revalidated before being used as is.
+     *
+     * @param aNow the current time, in milliseconds
+     */
+    public boolean isExpired(final long aNow) {
+        return mExpiresAt > 0 && aNow >= mExpiresAt;
+    }
+
+    /**
+     * Merges the caching information of a 304 Not Modified response, which may omit the
+     * validators of the tile it revalidated.
+     *
+     * @param aRevalidation the caching information of the 304 response
+     * @return the caching information of the revalidated tile
+     */
+    public MapTileMetadata revalidated(final MapTileMetadata aRevalidation) {
+        return new MapTileMetadata(
+                aRevalidation.mETag != null ? aRevalidation.mETag : mETag,
+                aRevalidation.mLastModified != null ? aRevalidation.mLastModified : mLastModified,
+                aRevalidation.mFetchedAt, aRevalidation.mExpiresAt, aRevalidation.mNoStore);
+    }
+
+    /**
+     * Serializes this caching information, to be read back with {@link #parse(String)}.
+     */
+    @Override
+    public String toString() {
+        return (mETag != null ? mETag : "") + SEPARATOR
+                + (mLastModified != null ? mLastModified : "") + SEPARATOR
+                + mFetchedAt + SEPARATOR + mExpiresAt;
+    }
+}
@@ -0,0 +1,307 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.os.SystemClock;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.util.GeometryMath;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Speculatively requests the tiles the map is about to draw: the next rings of tiles in the
+ * direction the map is scrolling, the parent tiles of the drawn ones, and their children while
+ * zooming in. Prefetched tiles go through the same request chain as drawn ones, but rank after
+ * them in the providers' queues (see {@link MapTileViewport#getPriority(MapTile)}).
+ * <p/>
+ * The methods of this class are meant to be called from the UI thread. The requests themselves
+ * are made from a background thread, which only handles the last range it was given, so that
+ * drawing a frame never waits for them.
+ */
+public class MapTilePrefetcher implements TileLayerConstants {
+
+    /**
+     * Smallest scroll step, in pixels, considered as a motion in that direction.
+     */
+    private static final float MIN_SCROLL_STEP = 2;
+
+    /**
+     * Time without a scroll step, in milliseconds, after which the map is considered still.
+     */
+    private static final long SCROLL_IDLE_MS = 150;
+
+    /**
+     * Number of prefetched tiles kept to be requested again without allocating them
+     */
+    private static final int MAXIMUM_PREFETCH_TILES = 256;
+
+    // Makes the requests of every prefetcher, off the UI thread.
+    private static final ExecutorService sPrefetchExecutor = Executors.newSingleThreadExecutor(
+            new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, "tile prefetch"));
+
+    private final MapTileLayerBase mTileProvider;
+    private volatile boolean mEnabled = true;
+
+    private float mScrollVelocityX = 0;
+    private float mScrollVelocityY = 0;
+    private long mLastScrollTime = 0;
+    private int mZoomDirection = 0;
+
+    private boolean mHasPrefetched = false;
+    private String mLastCacheKey;
+    private int mLastZoom;
+    private int mLastLeft;
+    private int mLastTop;
+    private int mLastRight;
+    private int mLastBottom;
+    private int mLastRingsX;
+    private int mLastRingsY;
+    private int mLastZoomDirection;
+
+    // the last range handed to the background thread, and whether it already has it queued
+    private final Object mPendingLock = new Object();
+    private boolean mPrefetchQueued = false;
+    private String mPendingCacheKey;
+    private int mPendingZoom;
+    private int mPendingLeft;
+    private int mPendingTop;
+    private int mPendingRight;
+    private int mPendingBottom;
+    private int mPendingRingsX;
+    private int mPendingRingsY;
+    private int mPendingZoomDirection;
+
+    // prefetched tiles by MapTile#getKey(), oldest first, only used by the background thread
+    private final LongHashMap<MapTile> mTiles = new LongHashMap<MapTile>(MAXIMUM_PREFETCH_TILES);
+    private int mTilesSourceId = -1;
+
+    private final Runnable mPrefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prefetchPending();
+        }
+    };
+
+    public MapTilePrefetcher(final MapTileLayerBase aTileProvider) {
+        this.mTileProvider = aTileProvider;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Set whether tiles should be prefetched, they are by default.
+     *
+     * @param aEnabled true to prefetch tiles
+     */
+    public void setEnabled(final boolean aEnabled) {
+        mEnabled = aEnabled;
+        mHasPrefetched = false;
+    }
+
+    /**
+     * Tells the prefetcher the map has scrolled. The steps are smoothed to estimate the
+     * direction and speed of the motion.
+     *
+     * @param dx the horizontal scroll step, in pixels
+     * @param dy the vertical scroll step, in pixels
+     */
+    public void onScroll(final int dx, final int dy) {
+        mScrollVelocityX = (mScrollVelocityX + dx) / 2;
+        mScrollVelocityY = (mScrollVelocityY + dy) / 2;
+        mLastScrollTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Tells the prefetcher in which direction the map is zooming.
+     *
+     * @param aZoomDirection 1 when zooming in, -1 when zooming out, 0 once done
+     */
+    public void setZoomDirection(final int aZoomDirection) {
+        mZoomDirection = aZoomDirection;
+    }
+
+    /**
+     * Prefetches the tiles around a range of drawn tiles. This is called on every draw, so it
+     * does nothing unless the range or the motion changed since the last call. Otherwise the
+     * range is handed to the background thread, replacing the one it didn't get to yet.
+     *
+     * @param aCacheKey the cache key of the drawn tiles
+     * @param aZoom the zoom level of the drawn tiles
+     * @param aLeft the leftmost tile column, not wrapped around the world
+     * @param aTop the topmost tile row
+     * @param aRight the rightmost tile column, not wrapped around the world
+     * @param aBottom the bottommost tile row
+     * @param aTileSizePx the size of a tile, in pixels
+     */
+    public void prefetch(final String aCacheKey, final int aZoom, final int aLeft, final int aTop,
+            final int aRight, final int aBottom, final int aTileSizePx) {
+        if (!mEnabled) {
+            return;
+        }
+        if (SystemClock.uptimeMillis() - mLastScrollTime > SCROLL_IDLE_MS) {
+            // the map stopped moving, don't keep prefetching in the last direction it went
+            mScrollVelocityX = 0;
+            mScrollVelocityY = 0;
+        }
+        final int ringsX = getRings(mScrollVelocityX, aTileSizePx);
+        final int ringsY = getRings(mScrollVelocityY, aTileSizePx);
+
+        if (mHasPrefetched && aZoom == mLastZoom && aLeft == mLastLeft && aTop == mLastTop
+                && aRight == mLastRight && aBottom == mLastBottom && ringsX == mLastRingsX
+                && ringsY == mLastRingsY && mZoomDirection == mLastZoomDirection
+                && aCacheKey.equals(mLastCacheKey)) {
+            return;
+        }
+        mHasPrefetched = true;
+        mLastCacheKey = aCacheKey;
+        mLastZoom = aZoom;
+        mLastLeft = aLeft;
+        mLastTop = aTop;
+        mLastRight = aRight;
+        mLastBottom = aBottom;
+        mLastRingsX = ringsX;
+        mLastRingsY = ringsY;
+        mLastZoomDirection = mZoomDirection;
+
+        synchronized (mPendingLock) {
+            mPendingCacheKey = aCacheKey;
+            mPendingZoom = aZoom;
+            mPendingLeft = aLeft;
+            mPendingTop = aTop;
+            mPendingRight = aRight;
+            mPendingBottom = aBottom;
+            mPendingRingsX = ringsX;
+            mPendingRingsY = ringsY;
+            mPendingZoomDirection = mZoomDirection;
+            if (mPrefetchQueued) {
+                return;
+            }
+            mPrefetchQueued = true;
+        }
+        sPrefetchExecutor.execute(mPrefetchRunnable);
+    }
+
+    /**
+     * Requests the tiles around the last range given to {@link #prefetch}, on the background
+     * thread.
+     */
+    private void prefetchPending() {
+        final String cacheKey;
+        final int zoom;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+        final int ringsX;
+        final int ringsY;
+        final int zoomDirection;
+        synchronized (mPendingLock) {
+            mPrefetchQueued = false;
+            cacheKey = mPendingCacheKey;
+            zoom = mPendingZoom;
+            left = mPendingLeft;
+            top = mPendingTop;
+            right = mPendingRight;
+            bottom = mPendingBottom;
+            ringsX = mPendingRingsX;
+            ringsY = mPendingRingsY;
+            zoomDirection = mPendingZoomDirection;
+        }
+        if (mEnabled) {
+            prefetchAround(cacheKey, zoom, left, top, right, bottom, ringsX, ringsY,
+                    zoomDirection);
+        }
+    }
+
+    private void prefetchAround(final String aCacheKey, final int aZoom, final int aLeft,
+            final int aTop, final int aRight, final int aBottom, final int aRingsX,
+            final int aRingsY, final int aZoomDirection) {
+        // the next rings in the direction of motion
+        if (aRingsX != 0 || aRingsY != 0) {
+            final int left = aLeft + Math.min(aRingsX, 0);
+            final int right = aRight + Math.max(aRingsX, 0);
+            final int top = aTop + Math.min(aRingsY, 0);
+            final int bottom = aBottom + Math.max(aRingsY, 0);
+            for (int y = top; y <= bottom; y++) {
+                for (int x = left; x <= right; x++) {
+                    if (x < aLeft || x > aRight || y < aTop || y > aBottom) {
+                        prefetchTile(aCacheKey, aZoom, x, y);
+                    }
+                }
+            }
+        }
+
+        // the parent tiles, zooming out shows them and they are cheap to keep around
+        if (aZoom > MINIMUM_ZOOMLEVEL) {
+            prefetchRange(aCacheKey, aZoom - 1, aLeft >> 1, aTop >> 1, aRight >> 1, aBottom >> 1);
+        }
+
+        // the children of the central tiles, which zooming in will show
+        if (aZoomDirection > 0 && aZoom < MAXIMUM_ZOOMLEVEL) {
+            final int marginX = (aRight - aLeft + 1) / 4;
+            final int marginY = (aBottom - aTop + 1) / 4;
+            prefetchRange(aCacheKey, aZoom + 1, (aLeft + marginX) << 1, (aTop + marginY) << 1,
+                    ((aRight - marginX) << 1) + 1, ((aBottom - marginY) << 1) + 1);
+        }
+    }
+
+    /**
+     * Computes how many rings of tiles to prefetch along an axis.
+     *
+     * @return a signed number of rings, following the direction of the motion
+     */
+    private int getRings(final float aVelocity, final int aTileSizePx) {
+        if (Math.abs(aVelocity) < MIN_SCROLL_STEP) {
+            return 0;
+        }
+        final int rings = Math.abs(aVelocity) > aTileSizePx / 4 ? TILE_PREFETCH_MARGIN : 1;
+        return aVelocity > 0 ? rings : -rings;
+    }
+
+    private void prefetchRange(final String aCacheKey, final int aZoom, final int aLeft,
+            final int aTop, final int aRight, final int aBottom) {
+        for (int y = aTop; y <= aBottom; y++) {
+            for (int x = aLeft; x <= aRight; x++) {
+                prefetchTile(aCacheKey, aZoom, x, y);
+            }
+        }
+    }
+
+    private void prefetchTile(final String aCacheKey, final int aZoom, final int aX,
+            final int aY) {
+        final int mapTileUpperBound = 1 << aZoom;
+        if (aY < 0 || aY >= mapTileUpperBound) {
+            return;
+        }
+        mTileProvider.prefetchMapTile(
+                getTile(aCacheKey, aZoom, GeometryMath.mod(aX, mapTileUpperBound), aY));
+    }
+
+    /**
+     * Gets a tile to prefetch, reusing the instance of a previous prefetch when there is one.
+     * The oldest tiles are dropped past {@link #MAXIMUM_PREFETCH_TILES}, and all of them when
+     * the source changes.
+     */
+    private MapTile getTile(final String aCacheKey, final int aZoom, final int aX, final int aY) {
+        final int sourceId = MapTile.getSourceId(aCacheKey);
+        if (sourceId != mTilesSourceId) {
+            mTiles.clear();
+            mTilesSourceId = sourceId;
+        }
+        final long key = MapTile.getKey(aZoom, aX, aY);
+        MapTile tile = mTiles.get(key);
+        if (tile == null) {
+            if (mTiles.size() >= MAXIMUM_PREFETCH_TILES) {
+                final Iterator<MapTile> eldest = mTiles.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            tile = new MapTile(aCacheKey, aZoom, aX, aY);
+            mTiles.put(key, tile);
+        }
+        return tile;
+    }
+}
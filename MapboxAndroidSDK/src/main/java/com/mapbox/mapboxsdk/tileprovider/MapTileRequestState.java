@@ -1,6 +1,7 @@
 package com.mapbox.mapboxsdk.tileprovider;
 
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
+import com.mapbox.mapboxsdk.util.HostCircuitBreaker;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -15,6 +16,17 @@ public class MapTileRequestState {
     private final MapTile mMapTile;
     private final IMapTileProviderCallback mCallback;
     private MapTileModuleLayerBase mCurrentProvider;
+    private volatile boolean mCancelled = false;
+    private Runnable mCancelAction;
+    private boolean mRefresh = false;
+    private boolean mDiskMetadataRead = false;
+    private int mDownloadAttempts = 0;
+    private volatile long mRetryDelay = 0;
+    private long mNotBefore = 0;
+    private volatile HostCircuitBreaker mOpenCircuit;
+    private long mDownloadLatency = -1;
+    private boolean mTransportFailure = false;
+    private MapTileMetadata mDiskMetadata;
 
     /**
      * Initialize a new state to keep track of a map tile
@@ -47,8 +59,160 @@ public class MapTileRequestState {
         return mCallback;
     }
 
+    /**
+     * Whether this request refreshes a stale tile which is still drawn from the cache. Such
+     * requests are served after the ones for missing tiles.
+     */
+    public boolean isRefresh() {
+        return mRefresh;
+    }
+
+    public void setRefresh(final boolean refresh) {
+        mRefresh = refresh;
+    }
+
+    /**
+     * Whether a provider already read the caching information of the tile from the disk cache,
+     * in which case {@link #getDiskMetadata()} holds it and it doesn't have to be read again.
+     */
+    public boolean isDiskMetadataRead() {
+        return mDiskMetadataRead;
+    }
+
+    /**
+     * @return the caching information of the tile on disk, or null if the tile isn't on disk or
+     *         has none
+     */
+    public MapTileMetadata getDiskMetadata() {
+        return mDiskMetadata;
+    }
+
+    public void setDiskMetadata(final MapTileMetadata metadata) {
+        mDiskMetadata = metadata;
+        mDiskMetadataRead = true;
+    }
+
+    /**
+     * @return the number of download attempts made for this request so far, retries included
+     */
+    public int getDownloadAttempts() {
+        return mDownloadAttempts;
+    }
+
+    public void setDownloadAttempts(final int attempts) {
+        mDownloadAttempts = attempts;
+    }
+
+    /**
+     * @return the delay after which the provider which failed to load the tile should try again,
+     *         or 0 if it shouldn't
+     */
+    public long getRetryDelay() {
+        return mRetryDelay;
+    }
+
+    /**
+     * Asks the provider loading the tile to try again after the given delay instead of failing.
+     * The request goes back to its pending queue in the meantime, so that it doesn't hold a
+     * loader.
+     *
+     * @param delayMs the delay, in milliseconds, or 0 to cancel the retry
+     */
+    public void setRetryDelay(final long delayMs) {
+        mRetryDelay = delayMs;
+    }
+
+    /**
+     * @return the {@link android.os.SystemClock#elapsedRealtime()} before which a retried
+     *         request isn't loaded again
+     */
+    public long getNotBefore() {
+        return mNotBefore;
+    }
+
+    public void setNotBefore(final long notBefore) {
+        mNotBefore = notBefore;
+    }
+
+    /**
+     * @return the circuit breaker which rejected the last download of this request because its
+     *         host kept failing, or null if none did
+     */
+    public HostCircuitBreaker getOpenCircuit() {
+        return mOpenCircuit;
+    }
+
+    public void setOpenCircuit(final HostCircuitBreaker circuit) {
+        mOpenCircuit = circuit;
+    }
+
+    /**
+     * @return how long the last download of this request took from the moment it was sent, in
+     *         milliseconds, or -1 if no download was sent since the last reset
+     */
+    public long getDownloadLatency() {
+        return mDownloadLatency;
+    }
+
+    public void setDownloadLatency(final long latencyMs) {
+        mDownloadLatency = latencyMs;
+    }
+
+    /**
+     * Whether the last download of this request failed because of the network or the server,
+     * through an I/O error, a server error or a 429 response. A missing tile isn't one.
+     */
+    public boolean isTransportFailure() {
+        return mTransportFailure;
+    }
+
+    public void setTransportFailure(final boolean failure) {
+        mTransportFailure = failure;
+    }
+
     public MapTileModuleLayerBase getNextProvider() {
         mCurrentProvider = mProviderQueue.poll();
         return mCurrentProvider;
     }
+
+    /**
+     * Cancel this request because its tile isn't needed anymore. The work in progress, if any,
+     * is aborted with the action given to {@link #setCancelAction(Runnable)}.
+     */
+    public void cancel() {
+        final Runnable action;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            action = mCancelAction;
+            mCancelAction = null;
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Set the action aborting the work currently done for this request, like closing a
+     * connection. It runs right away if the request was already cancelled.
+     *
+     * @param action the action, or null once the work is done
+     */
+    public void setCancelAction(final Runnable action) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mCancelAction = action;
+                return;
+            }
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
 }
@@ -0,0 +1,155 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+
+/**
+ * The range of tiles currently drawn by the map, used to rank and cancel pending tile requests.
+ * The x range is not wrapped around the world, so it can go from negative values to values past
+ * the number of tiles at this zoom level. Tiles up to {@link #TILE_PREFETCH_MARGIN} tiles around
+ * the range, and the ones covering it at the zoom levels right above and below, are still wanted
+ * as prefetched tiles.
+ * This class is immutable so that it can be shared between the UI thread and the tile loaders.
+ */
+public class MapTileViewport implements TileLayerConstants {
+
+    private final int mZoom;
+    private final int mLeft;
+    private final int mTop;
+    private final int mRight;
+    private final int mBottom;
+
+    public MapTileViewport(final int aZoom, final int aLeft, final int aTop, final int aRight,
+            final int aBottom) {
+        this.mZoom = aZoom;
+        this.mLeft = aLeft;
+        this.mTop = aTop;
+        this.mRight = aRight;
+        this.mBottom = aBottom;
+    }
+
+    public int getZoom() {
+        return mZoom;
+    }
+
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getTop() {
+        return mTop;
+    }
+
+    public int getRight() {
+        return mRight;
+    }
+
+    public int getBottom() {
+        return mBottom;
+    }
+
+    /**
+     * Whether this viewport covers exactly the given tile range.
+     */
+    public boolean matches(final int aZoom, final int aLeft, final int aTop, final int aRight,
+            final int aBottom) {
+        return mZoom == aZoom && mLeft == aLeft && mTop == aTop && mRight == aRight
+                && mBottom == aBottom;
+    }
+
+    /**
+     * Checks whether a tile is drawn in this viewport.
+     *
+     * @param aTile the tile in question
+     * @return true if the tile is at the zoom level of this viewport and inside its range
+     */
+    public boolean isVisible(final MapTile aTile) {
+        return aTile.getZ() == mZoom && isInRange(aTile.getX(), aTile.getX(), aTile.getY(),
+                aTile.getY(), 0);
+    }
+
+    /**
+     * Checks whether a tile is still wanted by this viewport, either because it is drawn or
+     * because it is close enough to be prefetched.
+     *
+     * @param aTile the tile in question
+     * @return true if a request for this tile should be kept
+     */
+    public boolean contains(final MapTile aTile) {
+        final int zoomDiff = aTile.getZ() - mZoom;
+        if (zoomDiff == 0) {
+            return isInRange(aTile.getX(), aTile.getX(), aTile.getY(), aTile.getY(),
+                    TILE_PREFETCH_MARGIN);
+        } else if (zoomDiff == 1) {
+            // a child tile, look at its parent
+            return isInRange(aTile.getX() >> 1, aTile.getX() >> 1, aTile.getY() >> 1,
+                    aTile.getY() >> 1, TILE_PREFETCH_MARGIN);
+        } else if (zoomDiff == -1) {
+            // a parent tile, look at its children
+            return isInRange(aTile.getX() << 1, (aTile.getX() << 1) + 1, aTile.getY() << 1,
+                    (aTile.getY() << 1) + 1, TILE_PREFETCH_MARGIN);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a block of tiles at the zoom level of this viewport intersects its range
+     * grown by a margin, wrapping columns around the world.
+     */
+    private boolean isInRange(final int aMinX, final int aMaxX, final int aMinY, final int aMaxY,
+            final int aMargin) {
+        if (aMaxY < mTop - aMargin || aMinY > mBottom + aMargin) {
+            return false;
+        }
+        final int worldSize = 1 << mZoom;
+        final int left = mLeft - aMargin;
+        final int width = mRight + aMargin - left;
+        if (width + 1 >= worldSize) {
+            return true;
+        }
+        for (int x = aMinX; x <= aMaxX; x++) {
+            int offset = (x - left) % worldSize;
+            if (offset < 0) {
+                offset += worldSize;
+            }
+            if (offset <= width) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the priority of a tile request in this viewport. Tiles at the zoom level of the
+     * viewport always come first, drawn tiles before prefetched ones, then the closer a tile is
+     * to the center of the viewport, the sooner it should be loaded.
+     *
+     * @param aTile the tile in question
+     * @return a score, lower values should be loaded first
+     */
+    public long getPriority(final MapTile aTile) {
+        final int zoomDiff = aTile.getZ() - mZoom;
+        // bring the tile to the zoom level of the viewport, using doubled coordinates so that
+        // tile centers stay integers
+        long x2;
+        long y2;
+        if (zoomDiff >= 0) {
+            x2 = ((2L * aTile.getX() + 1) >> zoomDiff);
+            y2 = ((2L * aTile.getY() + 1) >> zoomDiff);
+        } else {
+            x2 = ((2L * aTile.getX() + 1) << -zoomDiff);
+            y2 = ((2L * aTile.getY() + 1) << -zoomDiff);
+        }
+        final long worldSize2 = 2L << mZoom;
+        long dx = Math.abs(x2 - (mLeft + mRight + 1)) % worldSize2;
+        dx = Math.min(dx, worldSize2 - dx);
+        final long dy = y2 - (mTop + mBottom + 1);
+        final long prefetchPenalty = (zoomDiff == 0 && !isVisible(aTile)) ? (1L << 47) : 0;
+        return ((long) Math.abs(zoomDiff) << 48) + prefetchPenalty + dx * dx + dy * dy;
+    }
+
+    @Override
+    public String toString() {
+        return "MapTileViewport [zoom=" + mZoom + ", left=" + mLeft + ", top=" + mTop
+                + ", right=" + mRight + ", bottom=" + mBottom + "]";
+    }
+}
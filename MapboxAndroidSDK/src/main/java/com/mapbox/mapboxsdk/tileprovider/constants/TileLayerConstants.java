@@ -33,11 +33,117 @@ public interface TileLayerConstants {
     public static final int CACHE_MAPTILECOUNT_DEFAULT = 9;
 
     public static final int CACHE_MAPTILEDISKSIZE_DEFAULT = 100 * 1024 * 1024;
+
+    /**
+     * number of expiration times of tiles in memory tracked by the tile cache. Tiles whose
+     * expiration is forgotten are checked again the next time they are read from disk.
+     */
+    public static final int CACHE_TILE_EXPIRATIONS_MAXIMUM = 1024;
     /**
      * number of tile download threads, conforming to OSM policy:
      * http://wiki.openstreetmap.org/wiki/Tile_usage_policy
      */
     public static final int NUMBER_OF_TILE_DOWNLOAD_THREADS = 8;
 
+    /**
+     * bounds of the number of concurrent tile downloads, which adapts to the latency and error
+     * rate of the network starting from NUMBER_OF_TILE_DOWNLOAD_THREADS
+     */
+    public static final int MINIMUM_TILE_DOWNLOAD_THREADS = 2;
+
+    public static final int MAXIMUM_TILE_DOWNLOAD_THREADS = 16;
+
     public static final int TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * connection settings of the HTTP client shared by all tile downloads
+     */
+    public static final int TILE_CONNECTION_POOL_MAX_IDLE = MAXIMUM_TILE_DOWNLOAD_THREADS;
+
+    public static final long TILE_CONNECTION_KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    public static final long TILE_CONNECT_TIMEOUT_MS = 15 * 1000;
+
+    public static final long TILE_READ_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * concurrent tile requests per host until a tile downloader sets it to its concurrency limit
+     */
+    public static final int TILE_DOWNLOAD_MAXIMUM_REQUESTS_PER_HOST = 6;
+
+    /**
+     * initial size of the buffers downloaded tiles are read into
+     */
+    public static final int TILE_DATA_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * retries of tile downloads failing with a network error, a server error or a 429 response,
+     * spaced by a random delay of up to the base delay doubled at each attempt
+     */
+    public static final int TILE_DOWNLOAD_MAXIMUM_ATTEMPTS = 3;
+
+    public static final long TILE_DOWNLOAD_RETRY_BASE_DELAY_MS = 500;
+
+    public static final long TILE_DOWNLOAD_RETRY_MAXIMUM_DELAY_MS = 8 * 1000;
+
+    /**
+     * consecutive failures after which requests to a tile host are suspended, and for how long.
+     * The suspension doubles each time the host still fails once it is over.
+     */
+    public static final int TILE_HOST_FAILURE_THRESHOLD = 5;
+
+    public static final long TILE_HOST_OPEN_DURATION_MS = 5 * 1000;
+
+    public static final long TILE_HOST_MAXIMUM_OPEN_DURATION_MS = 5 * 60 * 1000;
+
+    /**
+     * shortest time a tile stays fresh once downloaded or revalidated, even if the server says it
+     * expires right away, so that visible tiles aren't refreshed on every frame
+     */
+    public static final long TILE_MINIMUM_FRESHNESS_MS = 60 * 1000;
+
+    /**
+     * delay before a stale tile whose refresh failed is refreshed again, and how many of those
+     * delays are remembered
+     */
+    public static final long TILE_REFRESH_RETRY_DELAY_MS = 30 * 1000;
+
+    public static final int TILE_REFRESH_RETRY_MAXIMUM_COUNT = 512;
+
+    /**
+     * number of tile rings around the drawn tiles which may be prefetched in the direction the
+     * map is moving
+     */
+    public static final int TILE_PREFETCH_MARGIN = 2;
+
+    /**
+     * number of concurrent downloads of an offline region
+     */
+    public static final int NUMBER_OF_OFFLINE_DOWNLOAD_THREADS = 4;
+
+    /**
+     * how often an offline download paused by an unavailable host checks whether it was
+     * cancelled
+     */
+    public static final long OFFLINE_DOWNLOAD_PAUSE_POLL_MS = 1000;
+
+    /**
+     * number of threads reading tiles from the disk cache. Local reads are cheap, so they get
+     * their own small pool instead of waiting behind network requests.
+     */
+    public static final int NUMBER_OF_TILE_FILESYSTEM_THREADS = 2;
+
+    public static final int TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * number of tiles remembered as unavailable while offline, so that they aren't requested
+     * again on every frame
+     */
+    public static final int UNACCESSIBLE_TILES_MAXIMUM_COUNT = 512;
+
+    /**
+     * number of read-only connections an MBTiles file keeps open, so that several download
+     * threads can read tiles from it at the same time
+     */
+    public static final int MBTILES_MAXIMUM_READER_CONNECTIONS = 4;
 }
@@ -3,22 +3,48 @@ package com.mapbox.mapboxsdk.tileprovider.modules;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An access layer to the MBTiles format. This is useful for offline tiles
  * that one would pre-package with an app.
+ * <p/>
+ * An archive opened with {@link #getWritableDatabaseFileArchive(File)} can also store tiles, for
+ * instance the ones of an {@link OfflineRegionDownloader}. New files use the map/images schema,
+ * where identical images (oceans, empty land...) are stored once.
+ * <p/>
+ * Read-only archives read tiles through a small pool of connections, opened as needed, since a
+ * single connection serializes every query made through it.
  */
 public class MBTilesFileArchive implements IArchiveFile {
 
     private final SQLiteDatabase mDatabase;
+    private final File mFile;
+    private final int mMaxReaders;
+    private final BlockingQueue<SQLiteDatabase> mIdleReaders =
+            new LinkedBlockingQueue<SQLiteDatabase>();
+    private int mOpenReaders = 0;
+    private volatile boolean mClosed = false;
+    private volatile Map<String, String> mMetadata;
 
     // TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB);
     public static final String TABLE_TILES = "tiles";
@@ -26,66 +52,393 @@ public class MBTilesFileArchive implements IArchiveFile {
     public static final String COL_TILES_TILE_DATA = "tile_data";
     public static final String COL_VALUE = "value";
 
-    private MBTilesFileArchive(final SQLiteDatabase pDatabase) {
+    private static final String SELECT_TILE_DATA = "SELECT tile_data FROM tiles "
+            + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static final String SELECT_TILE_EXISTS = "SELECT 1 FROM tiles "
+            + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static final long READER_WAIT_MS = 500;
+
+    /**
+     * Number of tiles written to the database in a single transaction
+     */
+    public static final int WRITE_BATCH_SIZE = 128;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS map (zoom_level INTEGER, tile_column INTEGER, "
+                    + "tile_row INTEGER, tile_id TEXT)",
+            "CREATE TABLE IF NOT EXISTS images (tile_data BLOB, tile_id TEXT)",
+            "CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS map_index ON map "
+                    + "(zoom_level, tile_column, tile_row)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS images_id ON images (tile_id)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS name ON metadata (name)",
+            "CREATE VIEW IF NOT EXISTS tiles AS SELECT map.zoom_level AS zoom_level, "
+                    + "map.tile_column AS tile_column, map.tile_row AS tile_row, "
+                    + "images.tile_data AS tile_data FROM map JOIN images "
+                    + "ON images.tile_id = map.tile_id"
+    };
+
+    // Only set for writable archives
+    private SQLiteStatement mInsertImage;
+    private SQLiteStatement mInsertMap;
+    private SQLiteStatement mInsertTile;
+    private SQLiteStatement mInsertMetadata;
+    private final List<PendingTile> mPendingTiles = new ArrayList<PendingTile>();
+
+    /**
+     * A tile waiting for the next batch to be written.
+     */
+    private static final class PendingTile {
+        final int zoom;
+        final int column;
+        final int row;
+        final byte[] data;
+
+        PendingTile(final int aZoom, final int aColumn, final int aRow, final byte[] aData) {
+            zoom = aZoom;
+            column = aColumn;
+            row = aRow;
+            data = aData;
+        }
+    }
+
+    private MBTilesFileArchive(final SQLiteDatabase pDatabase, final File pFile,
+            final int pMaxReaders) {
         mDatabase = pDatabase;
+        mFile = pFile;
+        mMaxReaders = pMaxReaders;
+        mMetadata = loadMetadata();
     }
 
     public static MBTilesFileArchive getDatabaseFileArchive(final File pFile)
             throws SQLiteException {
-        return new MBTilesFileArchive(SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
-                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY)
-        );
+        return getDatabaseFileArchive(pFile,
+                TileLayerConstants.MBTILES_MAXIMUM_READER_CONNECTIONS);
+    }
+
+    /**
+     * Opens an MBTiles file for reading.
+     *
+     * @param pFile the MBTiles file
+     * @param pMaxReaders the maximum number of connections reading tiles at the same time
+     * @return the archive
+     * @throws SQLiteException if the file can't be opened
+     */
+    public static MBTilesFileArchive getDatabaseFileArchive(final File pFile,
+            final int pMaxReaders) throws SQLiteException {
+        return new MBTilesFileArchive(openReadOnly(pFile), pFile, Math.max(1, pMaxReaders));
+    }
+
+    private static SQLiteDatabase openReadOnly(final File pFile) throws SQLiteException {
+        return SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
+                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY);
+    }
+
+    /**
+     * Opens an MBTiles file for reading and writing, creating it if needed. Tiles are added
+     * to the existing tables when the file stores them in a plain tiles table.
+     *
+     * @param pFile the MBTiles file
+     * @return the archive
+     * @throws SQLiteException if the file can't be opened or created
+     */
+    public static MBTilesFileArchive getWritableDatabaseFileArchive(final File pFile)
+            throws SQLiteException {
+        final SQLiteDatabase database = SQLiteDatabase.openDatabase(pFile.getAbsolutePath(),
+                null, SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READWRITE
+                        | SQLiteDatabase.CREATE_IF_NECESSARY);
+        final MBTilesFileArchive archive = new MBTilesFileArchive(database, pFile, 0);
+        archive.prepareForWriting();
+        return archive;
+    }
+
+    private void prepareForWriting() {
+        if (isTable(TABLE_TILES)) {
+            mInsertTile = mDatabase.compileStatement("INSERT OR REPLACE INTO tiles "
+                    + "(zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            mDatabase.execSQL("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+        } else {
+            mDatabase.beginTransaction();
+            try {
+                for (String statement : SCHEMA) {
+                    mDatabase.execSQL(statement);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            mInsertImage = mDatabase.compileStatement(
+                    "INSERT OR IGNORE INTO images (tile_data, tile_id) VALUES (?, ?)");
+            mInsertMap = mDatabase.compileStatement("INSERT OR REPLACE INTO map "
+                    + "(zoom_level, tile_column, tile_row, tile_id) VALUES (?, ?, ?, ?)");
+        }
+        mInsertMetadata = mDatabase.compileStatement(
+                "INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)");
+    }
+
+    private boolean isTable(final String name) {
+        final Cursor c = mDatabase.rawQuery(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] { name });
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    public boolean isWritable() {
+        return mInsertMetadata != null;
+    }
+
+    /**
+     * Computes the row of a tile in the MBTiles file, which counts rows from the bottom.
+     */
+    private static int getTileRow(final MapTile pTile) {
+        return (1 << pTile.getZ()) - 1 - pTile.getY();
+    }
+
+    /**
+     * Adds a tile to the archive, replacing the previous one if any. Tiles are written in
+     * batches of {@link #WRITE_BATCH_SIZE}, call {@link #flush()} to write the last ones.
+     *
+     * @param pTile the tile
+     * @param data the compressed tile image
+     */
+    public synchronized void putTile(final MapTile pTile, final byte[] data) {
+        if (!isWritable()) {
+            throw new IllegalStateException("This MBTiles archive is read-only.");
+        }
+        mPendingTiles.add(new PendingTile(pTile.getZ(), pTile.getX(), getTileRow(pTile), data));
+        if (mPendingTiles.size() >= WRITE_BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the tiles waiting for the next batch, in a single transaction.
+     */
+    public synchronized void flush() {
+        if (mPendingTiles.isEmpty()) {
+            return;
+        }
+        // the whole transaction happens here, since SQLite transactions belong to the thread
+        // which started them
+        mDatabase.beginTransaction();
+        try {
+            for (PendingTile tile : mPendingTiles) {
+                if (mInsertTile != null) {
+                    mInsertTile.bindLong(1, tile.zoom);
+                    mInsertTile.bindLong(2, tile.column);
+                    mInsertTile.bindLong(3, tile.row);
+                    mInsertTile.bindBlob(4, tile.data);
+                    mInsertTile.execute();
+                } else {
+                    final String tileId = getTileId(tile.data);
+                    mInsertImage.bindBlob(1, tile.data);
+                    mInsertImage.bindString(2, tileId);
+                    mInsertImage.execute();
+                    mInsertMap.bindLong(1, tile.zoom);
+                    mInsertMap.bindLong(2, tile.column);
+                    mInsertMap.bindLong(3, tile.row);
+                    mInsertMap.bindString(4, tileId);
+                    mInsertMap.execute();
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+            mPendingTiles.clear();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Sets a value of the metadata table, like "name", "bounds" or "minzoom".
+     *
+     * @param name the name of the value
+     * @param value the value
+     */
+    public synchronized void putMetadata(final String name, final String value) {
+        if (!isWritable()) {
+            throw new IllegalStateException("This MBTiles archive is read-only.");
+        }
+        mInsertMetadata.bindString(1, name);
+        mInsertMetadata.bindString(2, value);
+        mInsertMetadata.execute();
+        final Map<String, String> metadata = new HashMap<String, String>(mMetadata);
+        metadata.put(name, value);
+        mMetadata = Collections.unmodifiableMap(metadata);
+    }
+
+    /**
+     * Checks whether the archive holds a tile, including the ones not written yet.
+     *
+     * @param pTile the tile
+     * @return true if the tile is in the archive
+     */
+    public synchronized boolean hasTile(final MapTile pTile) {
+        final int row = getTileRow(pTile);
+        for (PendingTile tile : mPendingTiles) {
+            if (tile.zoom == pTile.getZ() && tile.column == pTile.getX() && tile.row == row) {
+                return true;
+            }
+        }
+        final Cursor c = mDatabase.rawQuery(SELECT_TILE_EXISTS, new String[] {
+                Integer.toString(pTile.getZ()), Integer.toString(pTile.getX()),
+                Integer.toString(row)
+        });
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Identifies an image by its MD5 hash, so that identical images are stored once.
+     */
+    private static String getTileId(final byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            final StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
     }
 
     @Override
     public InputStream getInputStream(final ITileLayer pTileSource, final MapTile pTile) {
+        final byte[] data = getTileData(pTile);
+        return data != null ? new ByteArrayInputStream(data) : null;
+    }
 
+    /**
+     * Reads the image of a tile. The query text never changes, so SQLite compiles it once per
+     * connection and reuses it from its statement cache.
+     *
+     * @param pTile the tile
+     * @return the compressed tile image, or null if the archive doesn't hold it
+     */
+    public byte[] getTileData(final MapTile pTile) {
+        SQLiteDatabase database = null;
         try {
-            InputStream ret = null;
-            final String[] tile = { COL_TILES_TILE_DATA };
-            final String[] xyz = {
-                    Integer.toString(pTile.getX()),
-                    Double.toString(Math.pow(2, pTile.getZ()) - pTile.getY() - 1),
-                    Integer.toString(pTile.getZ())
-            };
-
-            final Cursor cur = mDatabase.query(TABLE_TILES, tile,
-                    "tile_column=? and tile_row=? and zoom_level=?", xyz, null, null, null);
-
-            if (cur.getCount() != 0) {
-                cur.moveToFirst();
-                ret = new ByteArrayInputStream(cur.getBlob(0));
-            }
-            cur.close();
-            if (ret != null) {
-                return ret;
+            database = acquireReader();
+            final Cursor cur = database.rawQuery(SELECT_TILE_DATA, new String[] {
+                    Integer.toString(pTile.getZ()), Integer.toString(pTile.getX()),
+                    Integer.toString(getTileRow(pTile))
+            });
+            try {
+                if (cur.moveToFirst()) {
+                    return cur.getBlob(0);
+                }
+            } finally {
+                cur.close();
             }
         } catch (final Throwable e) {
             Log.w(TAG, "Error getting db stream: " + pTile, e);
+        } finally {
+            if (database != null) {
+                releaseReader(database);
+            }
         }
-
         return null;
     }
 
+    /**
+     * Takes a connection to read tiles with, opening a new one if all are busy and the pool
+     * isn't full, or waiting for one to be released otherwise. Writable archives only use their
+     * main connection.
+     */
+    private SQLiteDatabase acquireReader() throws InterruptedException {
+        if (mMaxReaders == 0) {
+            return mDatabase;
+        }
+        SQLiteDatabase reader = mIdleReaders.poll();
+        if (reader != null) {
+            return reader;
+        }
+        synchronized (mIdleReaders) {
+            if (mClosed) {
+                throw new IllegalStateException("This MBTiles archive is closed.");
+            }
+            if (mOpenReaders < mMaxReaders) {
+                // the main connection is the first reader
+                reader = mOpenReaders == 0 ? mDatabase : openReadOnly(mFile);
+                mOpenReaders++;
+                return reader;
+            }
+        }
+        while (true) {
+            reader = mIdleReaders.poll(READER_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (reader != null) {
+                return reader;
+            } else if (mClosed) {
+                throw new IllegalStateException("This MBTiles archive is closed.");
+            }
+        }
+    }
+
+    private void releaseReader(final SQLiteDatabase pReader) {
+        if (pReader == mDatabase && mMaxReaders == 0) {
+            return;
+        }
+        synchronized (mIdleReaders) {
+            if (!mClosed) {
+                mIdleReaders.offer(pReader);
+            } else if (pReader != mDatabase) {
+                pReader.close();
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "MBTiles [mDatabase=" + mDatabase.getPath() + "]";
     }
 
-    private String getStringValue(String key) {
-        final String[] column = { COL_VALUE };
-        final String[] query = { key };
-
-        Cursor c =
-                this.mDatabase.query(TABLE_METADATA, column, "name = ?", query, null, null, null);
+    /**
+     * Reads the whole metadata table, which only holds a handful of rows.
+     */
+    private Map<String, String> loadMetadata() {
+        final Map<String, String> metadata = new HashMap<String, String>();
         try {
-            c.moveToFirst();
-            return c.getString(0);
-        } catch (Exception e) {
-            return null;
-        } finally {
-            c.close();
+            if (!isTable(TABLE_METADATA)) {
+                return Collections.unmodifiableMap(metadata);
+            }
+            final Cursor c = mDatabase.rawQuery("SELECT name, " + COL_VALUE + " FROM "
+                    + TABLE_METADATA, null);
+            try {
+                while (c.moveToNext()) {
+                    metadata.put(c.getString(0), c.getString(1));
+                }
+            } finally {
+                c.close();
+            }
+        } catch (final SQLiteException e) {
+            Log.w(TAG, "Error reading the MBTiles metadata", e);
         }
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    /**
+     * Gets all values of the metadata table, as read when the archive was opened and updated
+     * by {@link #putMetadata(String, String)}.
+     *
+     * @return an unmodifiable map of the metadata values by name
+     */
+    public Map<String, String> getMetadata() {
+        return mMetadata;
+    }
+
+    private String getStringValue(String key) {
+        return mMetadata.get(key);
     }
 
     public float getMinZoomLevel() {
@@ -145,11 +498,34 @@ public class MBTilesFileArchive implements IArchiveFile {
         return null;
     }
 
-    public void close() {
+    public synchronized void close() {
+        synchronized (mIdleReaders) {
+            mClosed = true;
+            SQLiteDatabase reader;
+            while ((reader = mIdleReaders.poll()) != null) {
+                if (reader != mDatabase) {
+                    reader.close();
+                }
+            }
+        }
         if (mDatabase != null) {
+            if (isWritable()) {
+                flush();
+                closeStatement(mInsertImage);
+                closeStatement(mInsertMap);
+                closeStatement(mInsertTile);
+                closeStatement(mInsertMetadata);
+                mInsertMetadata = null;
+            }
             mDatabase.close();
         }
     }
 
+    private static void closeStatement(final SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+
     private static final String TAG = "MBTilesFileArchive";
 }
@@ -0,0 +1,182 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+
+/**
+ * Adapts how many tiles a provider loads at the same time to what the network can take, in the
+ * manner of TCP congestion control (additive increase, multiplicative decrease).
+ * <p/>
+ * Completed requests are grouped in windows of as many requests as the current limit. After a
+ * window without failures whose latency stayed close to the best one seen, the limit grows by
+ * one. When too many requests of a window failed, or its latency inflated because requests
+ * started queuing up on the link, the limit is halved. On a slow link this settles on a few
+ * parallel requests, while a fast one goes up to the maximum.
+ * This class is thread safe.
+ */
+public class MapTileConcurrencyController implements TileLayerConstants {
+
+    /**
+     * Share of failed requests in a window above which the limit is decreased.
+     */
+    private static final float FAILURE_RATE_THRESHOLD = 0.25f;
+
+    /**
+     * How much the average latency of a window may exceed the best one before the limit is
+     * decreased.
+     */
+    private static final float LATENCY_TOLERANCE = 2.0f;
+
+    /**
+     * How fast the best latency follows the current one up, per window, so that it adapts when
+     * the device moves to a slower network.
+     */
+    private static final float BASELINE_LATENCY_DRIFT = 1.05f;
+
+    private int mMinimumLimit;
+    private int mMaximumLimit;
+    private int mLimit;
+
+    private int mWindowCount = 0;
+    private int mWindowFailures = 0;
+    private long mWindowLatency = 0;
+    private long mWindowStart = 0;
+    private float mBaselineLatency = 0;
+
+    private float mAverageLatency = 0;
+    private float mThroughput = 0;
+    private long mCompleted = 0;
+    private long mFailed = 0;
+
+    /**
+     * @param aMinimumLimit the lowest number of concurrent requests
+     * @param aInitialLimit the number of concurrent requests to start with
+     * @param aMaximumLimit the highest number of concurrent requests
+     */
+    public MapTileConcurrencyController(final int aMinimumLimit, final int aInitialLimit,
+            final int aMaximumLimit) {
+        setBounds(aMinimumLimit, aMaximumLimit);
+        mLimit = clamp(aInitialLimit);
+    }
+
+    /**
+     * Sets the range the limit adapts within.
+     *
+     * @param aMinimumLimit the lowest number of concurrent requests
+     * @param aMaximumLimit the highest number of concurrent requests
+     */
+    public synchronized void setBounds(final int aMinimumLimit, final int aMaximumLimit) {
+        mMinimumLimit = Math.max(1, aMinimumLimit);
+        mMaximumLimit = Math.max(mMinimumLimit, aMaximumLimit);
+        mLimit = clamp(mLimit);
+    }
+
+    public synchronized int getMinimumLimit() {
+        return mMinimumLimit;
+    }
+
+    public synchronized int getMaximumLimit() {
+        return mMaximumLimit;
+    }
+
+    /**
+     * @return the number of requests which may currently run at the same time
+     */
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return whether the limit can change at all
+     */
+    public synchronized boolean isAdaptive() {
+        return mMinimumLimit < mMaximumLimit;
+    }
+
+    /**
+     * Records the outcome of a request. Cancelled requests shouldn't be recorded.
+     *
+     * @param aSuccess whether the request succeeded
+     * @param aLatencyMs how long the request took, in milliseconds
+     * @return by how much the limit changed, positive if more requests may now run
+     */
+    public synchronized int onRequestFinished(final boolean aSuccess, final long aLatencyMs) {
+        final long now = SystemClock.elapsedRealtime();
+        if (mWindowCount == 0) {
+            mWindowStart = now - aLatencyMs;
+        }
+        mWindowCount++;
+        mWindowLatency += aLatencyMs;
+        mCompleted++;
+        if (!aSuccess) {
+            mWindowFailures++;
+            mFailed++;
+        }
+        if (mWindowCount < mLimit) {
+            return 0;
+        }
+
+        final float latency = (float) mWindowLatency / mWindowCount;
+        final float failureRate = (float) mWindowFailures / mWindowCount;
+        mAverageLatency = latency;
+        mThroughput = mWindowCount * 1000f / Math.max(now - mWindowStart, 1);
+
+        final int previousLimit = mLimit;
+        if (failureRate > FAILURE_RATE_THRESHOLD
+                || (mBaselineLatency > 0 && latency > mBaselineLatency * LATENCY_TOLERANCE)) {
+            mLimit = clamp(mLimit / 2);
+        } else if (mWindowFailures == 0) {
+            mLimit = clamp(mLimit + 1);
+        }
+        if (mWindowFailures < mWindowCount) {
+            mBaselineLatency = (mBaselineLatency == 0) ? latency
+                    : Math.min(latency, mBaselineLatency * BASELINE_LATENCY_DRIFT);
+        }
+
+        if (DEBUG_TILE_PROVIDERS && mLimit != previousLimit) {
+            Log.d(TAG, "Concurrency limit " + previousLimit + " -> " + mLimit + ", latency "
+                    + latency + "ms, baseline " + mBaselineLatency + "ms, failures "
+                    + failureRate + ", throughput " + mThroughput + "/s");
+        }
+        mWindowCount = 0;
+        mWindowFailures = 0;
+        mWindowLatency = 0;
+        return mLimit - previousLimit;
+    }
+
+    /**
+     * @return the average latency of the last window, in milliseconds
+     */
+    public synchronized float getAverageLatency() {
+        return mAverageLatency;
+    }
+
+    /**
+     * @return the number of requests completed per second during the last window
+     */
+    public synchronized float getThroughput() {
+        return mThroughput;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    private int clamp(final int aLimit) {
+        return Math.max(mMinimumLimit, Math.min(mMaximumLimit, aLimit));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MapTileConcurrencyController [limit=" + mLimit + ", min=" + mMinimumLimit
+                + ", max=" + mMaximumLimit + ", latency=" + mAverageLatency + "ms, throughput="
+                + mThroughput + "/s, completed=" + mCompleted + ", failed=" + mFailed + "]";
+    }
+
+    private static final String TAG = "MapTileConcurrencyController";
+}
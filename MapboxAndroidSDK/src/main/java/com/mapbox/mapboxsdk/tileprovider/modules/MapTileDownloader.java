@@ -4,11 +4,12 @@ import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
-import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
+import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
@@ -30,7 +31,8 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
 
     public MapTileDownloader(final ITileLayer pTileSource, final MapTileCache pTileCache,
             final NetworkAvailabilityCheck pNetworkAvailabilityCheck, final MapView mapView) {
-        super(NUMBER_OF_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
+        super(MINIMUM_TILE_DOWNLOAD_THREADS, NUMBER_OF_TILE_DOWNLOAD_THREADS,
+                MAXIMUM_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
         this.mapView = mapView;
         this.mTileCache.set(pTileCache);
 
@@ -39,6 +41,7 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
 
         mNetworkAvailabilityCheck = pNetworkAvailabilityCheck;
         setTileSource(pTileSource);
+        onConcurrencyLimitChanged(getConcurrencyController().getLimit());
     }
 
     public ITileLayer getTileSource() {
@@ -67,6 +70,24 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return true;
     }
 
+    /**
+     * Only web layers write what they load to the disk cache, local archives such as MBTiles
+     * files are read directly.
+     */
+    @Override
+    public boolean getUsesDiskCache() {
+        return mTileSource.get() instanceof WebSourceTileLayer;
+    }
+
+    /**
+     * Lets as many requests run against a host as this downloader runs loads, so that they
+     * don't queue for a permit of the host while the concurrency controller raises the limit.
+     */
+    @Override
+    protected void onConcurrencyLimitChanged(final int pLimit) {
+        NetworkUtils.setMaxTileRequestsPerHost(pLimit);
+    }
+
     @Override
     protected String getName() {
         return "Online Tile Download Provider";
@@ -145,10 +166,9 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
 
             TileLayer tileLayer = mTileSource.get();
-            final MapTile tile = aState.getMapTile();
             Drawable result =
                     (tileLayer != null) ? tileLayer.getDrawableFromTile(MapTileDownloader.this,
-                            tile, hdpi) : null;
+                            aState, hdpi) : null;
             return result;
         }
     }
@@ -0,0 +1,132 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.graphics.drawable.Drawable;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileMetadata;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import uk.co.senab.bitmapcache.BitmapLruCache;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * The {@link MapTileFilesystemProvider} loads tiles from the disk cache of a {@link MapTileCache}.
+ * It has its own small thread pool and sits first in the provider chain, so that cheap local hits
+ * don't wait behind slow network requests. When a tile isn't on disk the request fails and goes
+ * on to the next provider, typically a {@link MapTileDownloader}. Tiles past the expiration the
+ * server gave them are returned as expired, so that they are drawn while the next provider
+ * revalidates them.
+ */
+public class MapTileFilesystemProvider extends MapTileModuleLayerBase {
+
+    private final MapTileCache mTileCache;
+
+    public MapTileFilesystemProvider(final MapTileCache pTileCache) {
+        super(NUMBER_OF_TILE_FILESYSTEM_THREADS, TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE);
+        this.mTileCache = pTileCache;
+    }
+
+    public MapTileCache getCache() {
+        return mTileCache;
+    }
+
+    @Override
+    public boolean getUsesDataConnection() {
+        return false;
+    }
+
+    @Override
+    protected String getName() {
+        return "File System Cache Provider";
+    }
+
+    @Override
+    protected String getThreadGroupName() {
+        return "filesystem";
+    }
+
+    @Override
+    protected Runnable getTileLoader() {
+        return new TileLoader();
+    }
+
+    @Override
+    public float getMinimumZoomLevel() {
+        return MINIMUM_ZOOMLEVEL;
+    }
+
+    @Override
+    public float getMaximumZoomLevel() {
+        return MAXIMUM_ZOOMLEVEL;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        return null;
+    }
+
+    @Override
+    public LatLng getCenterCoordinate() {
+        return null;
+    }
+
+    @Override
+    public float getCenterZoom() {
+        return (getMaximumZoomLevel() + getMinimumZoomLevel()) / 2;
+    }
+
+    @Override
+    public int getTileSizePixels() {
+        return 0;
+    }
+
+    @Override
+    public void setTileSource(final ITileLayer tileSource) {
+        // The disk cache serves every tile source, tiles are told apart by their cache key
+    }
+
+    @Override
+    public ITileLayer getTileSource() {
+        return null;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return "";
+    }
+
+    protected class TileLoader extends MapTileModuleLayerBase.TileLoader {
+
+        @Override
+        public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
+            if (mTileCache == null) {
+                return null;
+            }
+            // A miss returns null, which passes the request on to the next provider
+            if (BitmapUtils.isCacheDrawableExpired(
+                    mTileCache.getMapTileFromMemory(aState.getMapTile()))) {
+                // the expired copy is already in memory, leave the revalidation to the next
+                // provider instead of decoding it again
+                return null;
+            }
+            // the image and its caching information come from the same disk cache snapshot, and
+            // the information is kept on the request for the downloader to revalidate the tile
+            final BitmapLruCache.DiskCacheEntry entry =
+                    mTileCache.getMapTileEntryFromDisk(aState.getMapTile());
+            if (entry == null) {
+                aState.setDiskMetadata(null);
+                return null;
+            }
+            final CacheableBitmapDrawable result = entry.getDrawable();
+            final MapTileMetadata metadata = MapTileMetadata.parse(entry.getMetadata());
+            aState.setDiskMetadata(metadata);
+            mTileCache.setTileExpiration(aState.getMapTile(), metadata);
+            if (metadata != null && metadata.isExpired(System.currentTimeMillis())) {
+                BitmapUtils.setCacheDrawableExpired(result);
+            }
+            return result;
+        }
+    }
+}
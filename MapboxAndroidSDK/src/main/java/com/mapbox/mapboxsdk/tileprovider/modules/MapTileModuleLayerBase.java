@@ -2,20 +2,25 @@ package com.mapbox.mapboxsdk.tileprovider.modules;
 
 import android.graphics.drawable.Drawable;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.MapTileViewport;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -58,6 +63,16 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
      */
     public abstract boolean getUsesDataConnection();
 
+    /**
+     * Returns true if the tiles this provider loads are written to the disk cache, in which case
+     * the disk cache is checked before asking this provider.
+     *
+     * @return true if loaded tiles end up in the disk cache, false by default
+     */
+    public boolean getUsesDiskCache() {
+        return false;
+    }
+
     /**
      * Gets the minimum zoom level this tile provider can provide
      *
@@ -113,15 +128,88 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
 
     private final ExecutorService mExecutor;
 
+    // Starts loaders again once the retry delay of a request is over, shared by every provider.
+    private static final ScheduledExecutorService sRetryScheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, "tile retry"));
+
     protected final Object mQueueLockObject = new Object();
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
-    protected final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+    /**
+     * Requests being loaded, keyed by {@link MapTile#getKey()}.
+     */
+    protected final LongHashMap<MapTileRequestState> mWorking;
+    /**
+     * Pending requests keyed by {@link MapTile#getKey()}, in the order they were made. They
+     * aren't served in that order but ranked against the current viewport every time a loader
+     * picks the next one. The queue is small enough for a linear scan to be cheaper than keeping
+     * a heap sorted while the viewport moves.
+     */
+    protected final LongHashMap<MapTileRequestState> mPending;
+    private final int mPendingQueueSize;
+    private final int mThreadPoolSize;
+    private final MapTileConcurrencyController mConcurrency;
+    private volatile MapTileViewport mViewport;
+
+    /**
+     * Added to the priority of requests refreshing stale tiles, so that they come after every
+     * request for a missing tile.
+     */
+    private static final long REFRESH_PRIORITY_PENALTY = 1L << 56;
+
+    /**
+     * Computes the priority of a request in a viewport, lower values should be loaded first.
+     */
+    private static long getPriority(final MapTileViewport viewport,
+            final MapTileRequestState state) {
+        final long priority = (viewport != null) ? viewport.getPriority(state.getMapTile()) : 0;
+        return state.isRefresh() ? priority + REFRESH_PRIORITY_PENALTY : priority;
+    }
 
-    public MapTileRequestState popFirstPending() {
-        for (MapTile tile : mPending.keySet()) {
-            return mPending.remove(tile);
+    /**
+     * Removes and returns the pending request which should be loaded next: the one closest
+     * to the center of the viewport, or the most recent one if several are equally close.
+     * Refreshes of stale tiles come last, and retried requests are skipped until their delay is
+     * over. Must be called while holding mQueueLockObject.
+     *
+     * @return the next request, or null if there are none
+     */
+    public MapTileRequestState popNextPending() {
+        final MapTileViewport viewport = mViewport;
+        final long now = SystemClock.elapsedRealtime();
+        MapTileRequestState best = null;
+        long bestPriority = Long.MAX_VALUE;
+        for (MapTileRequestState state : mPending.values()) {
+            if (state.getNotBefore() > now) {
+                continue;
+            }
+            final long priority = getPriority(viewport, state);
+            if (priority <= bestPriority) {
+                best = state;
+                bestPriority = priority;
+            }
         }
-        return null;
+        return (best != null) ? mPending.remove(best.getMapTile().getKey()) : null;
+    }
+
+    /**
+     * Removes and returns the pending request which is the least useful: the one farthest from
+     * the center of the viewport, or the oldest one if several are equally far.
+     * Must be called while holding mQueueLockObject.
+     *
+     * @return the request to drop, or null if there are none
+     */
+    private MapTileRequestState popLastPending() {
+        final MapTileViewport viewport = mViewport;
+        MapTileRequestState worst = null;
+        long worstPriority = Long.MIN_VALUE;
+        for (MapTileRequestState state : mPending.values()) {
+            final long priority = getPriority(viewport, state);
+            if (priority > worstPriority) {
+                worst = state;
+                worstPriority = priority;
+            }
+        }
+        return (worst != null) ? mPending.remove(worst.getMapTile().getKey()) : null;
     }
 
     /**
@@ -130,43 +218,135 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
      * size must be larger than or equal to the thread pool size.
      */
     public MapTileModuleLayerBase(int pThreadPoolSize, final int pPendingQueueSize) {
-        if (pPendingQueueSize < pThreadPoolSize) {
+        this(pThreadPoolSize, pThreadPoolSize, pThreadPoolSize, pPendingQueueSize);
+    }
+
+    /**
+     * Initialize a new tile provider whose number of concurrent loads adapts to the latency and
+     * error rate of the requests, between a minimum and a maximum. The thread pool is sized for
+     * the maximum, and the pending queue size must be larger than or equal to it.
+     *
+     * @see MapTileConcurrencyController
+     */
+    protected MapTileModuleLayerBase(final int pMinimumThreads, final int pInitialThreads,
+            int pMaximumThreads, final int pPendingQueueSize) {
+        if (pPendingQueueSize < pMaximumThreads) {
             Log.w(TAG,
                     "The pending queue size is smaller than the thread pool size. Automatically reducing the thread pool size.");
-            pThreadPoolSize = pPendingQueueSize;
+            pMaximumThreads = pPendingQueueSize;
         }
-        mExecutor = Executors.newFixedThreadPool(pThreadPoolSize,
+        mExecutor = Executors.newFixedThreadPool(pMaximumThreads,
                 new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, getThreadGroupName()));
+        mThreadPoolSize = pMaximumThreads;
+        mConcurrency = new MapTileConcurrencyController(Math.min(pMinimumThreads, pMaximumThreads),
+                pInitialThreads, pMaximumThreads);
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mPending =
-                new LinkedHashMap<MapTile, MapTileRequestState>(pPendingQueueSize + 2, 0.1f, true) {
+        mWorking = new LongHashMap<MapTileRequestState>(pMaximumThreads);
+        mPending = new LongHashMap<MapTileRequestState>(pPendingQueueSize + 2);
+        mPendingQueueSize = pPendingQueueSize;
+    }
 
-                    private static final long serialVersionUID = 6455337315681858866L;
+    /**
+     * Sets the range the number of concurrent loads of this provider adapts within. The maximum
+     * can't exceed the size of the thread pool the provider was created with. Passing the same
+     * value twice fixes the number of concurrent loads.
+     *
+     * @param pMinimum the lowest number of concurrent loads
+     * @param pMaximum the highest number of concurrent loads
+     */
+    public void setConcurrencyBounds(final int pMinimum, final int pMaximum) {
+        final int previousLimit = mConcurrency.getLimit();
+        mConcurrency.setBounds(Math.min(pMinimum, mThreadPoolSize),
+                Math.min(pMaximum, mThreadPoolSize));
+        final int change = mConcurrency.getLimit() - previousLimit;
+        if (change != 0) {
+            onConcurrencyLimitChanged(mConcurrency.getLimit());
+        }
+        startTileLoaders(change);
+    }
 
-                    @Override
-                    protected boolean removeEldestEntry(
-                            final Map.Entry<MapTile, MapTileRequestState> pEldest) {
-                        while (size() > pPendingQueueSize) {
-                            MapTileRequestState state = popFirstPending();
-                            state.getCallback().mapTileRequestFailed(state);
-                        }
-                        return false;
-                    }
-                };
+    /**
+     * Called when the number of concurrent loads of this provider changed.
+     *
+     * @param pLimit the new number of concurrent loads
+     */
+    protected void onConcurrencyLimitChanged(final int pLimit) {
+    }
+
+    /**
+     * @return the controller of the number of concurrent loads, which also reports their
+     * latency and throughput
+     */
+    public MapTileConcurrencyController getConcurrencyController() {
+        return mConcurrency;
+    }
+
+    /**
+     * Sets the tiles currently drawn by the map. Pending requests are ranked by their distance
+     * to this viewport, and the ones for tiles which aren't in it anymore are cancelled. Requests
+     * already being loaded are cancelled too, which aborts their download.
+     *
+     * @param pViewport the new viewport
+     */
+    public void setViewport(final MapTileViewport pViewport) {
+        mViewport = pViewport;
+        if (pViewport == null) {
+            return;
+        }
+        final List<MapTileRequestState> cancelled = new ArrayList<MapTileRequestState>();
+        synchronized (mQueueLockObject) {
+            final Iterator<MapTileRequestState> iterator = mPending.values().iterator();
+            while (iterator.hasNext()) {
+                final MapTileRequestState state = iterator.next();
+                if (!pViewport.contains(state.getMapTile())) {
+                    iterator.remove();
+                    cancelled.add(state);
+                }
+            }
+            for (MapTileRequestState state : mWorking.values()) {
+                if (!pViewport.contains(state.getMapTile())) {
+                    // the loader reports the cancellation once it gives up on the tile
+                    state.cancel();
+                }
+            }
+        }
+        for (MapTileRequestState state : cancelled) {
+            state.cancel();
+            if (DEBUG_TILE_PROVIDERS) {
+                Log.i(TAG, "MapTileModuleLayerBase.setViewport() on provider: "
+                        + getName()
+                        + " cancelling tile out of view: "
+                        + state.getMapTile());
+            }
+            state.getCallback().mapTileRequestCancelled(state);
+        }
+    }
+
+    public MapTileViewport getViewport() {
+        return mViewport;
     }
 
     /**
      * Loads a map tile asynchronously, adding it to the queue and calling getTileLoader.
      */
     public void loadMapTileAsync(final MapTileRequestState pState) {
+        final MapTileViewport viewport = mViewport;
+        if (pState.isCancelled()
+                || (viewport != null && !viewport.contains(pState.getMapTile()))) {
+            // the tile went out of view while it was going through the provider chain
+            pState.cancel();
+            pState.getCallback().mapTileRequestCancelled(pState);
+            return;
+        }
+
+        MapTileRequestState dropped = null;
         synchronized (mQueueLockObject) {
             if (DEBUG_TILE_PROVIDERS) {
                 Log.i(TAG, "MapTileModuleLayerBase.loadMaptileAsync() on provider: "
                         + getName()
                         + " for tile: "
                         + pState.getMapTile());
-                if (mPending.containsKey(pState.getMapTile())) {
+                if (mPending.containsKey(pState.getMapTile().getKey())) {
                     Log.i(TAG,
                             "MapTileModuleLayerBase.loadMaptileAsync() tile already exists in request queue for modular provider. Moving to front of queue.");
                 } else {
@@ -174,15 +354,49 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                             "MapTileModuleLayerBase.loadMaptileAsync() adding tile to request queue for modular provider.");
                 }
             }
-            // this will put the tile in the queue, or move it to the front of
-            // the queue if it's already present
-            mPending.put(pState.getMapTile(), pState);
+            // this will put the tile in the queue, or make it the most recent request
+            // if it's already present
+            final long key = pState.getMapTile().getKey();
+            mPending.remove(key);
+            mPending.put(key, pState);
+            if (mPending.size() > mPendingQueueSize) {
+                dropped = popLastPending();
+            }
+        }
+
+        if (dropped != null) {
+            dropped.getCallback().mapTileRequestFailed(dropped);
+        }
+
+        startTileLoaders(1);
+    }
+
+    /**
+     * Starts tile loaders. Loaders stop by themselves once the pending queue is empty or the
+     * concurrency limit is reached, so starting more than needed is harmless.
+     */
+    private void startTileLoaders(final int pCount) {
+        for (int i = 0; i < pCount; i++) {
+            try {
+                mExecutor.execute(getTileLoader());
+            } catch (final RejectedExecutionException e) {
+                Log.w(TAG, "RejectedExecutionException", e);
+                return;
+            }
         }
+    }
 
-        try {
-            mExecutor.execute(getTileLoader());
-        } catch (final RejectedExecutionException e) {
-            Log.w(TAG, "RejectedExecutionException", e);
+    /**
+     * Reports a finished download to the concurrency controller, and starts more loaders if it
+     * raised the limit.
+     */
+    private void onTileLoadFinished(final boolean pSuccess, final long pLatencyMs) {
+        if (mConcurrency.isAdaptive()) {
+            final int change = mConcurrency.onRequestFinished(pSuccess, pLatencyMs);
+            if (change != 0) {
+                onConcurrencyLimitChanged(mConcurrency.getLimit());
+            }
+            startTileLoaders(change);
         }
     }
 
@@ -215,8 +429,8 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                         + " for tile: "
                         + mapTile);
             }
-            mPending.remove(mapTile);
-            mWorking.remove(mapTile);
+            mPending.remove(mapTile.getKey());
+            mWorking.remove(mapTile.getKey());
         }
     }
 
@@ -248,12 +462,14 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         protected MapTileRequestState nextTile() {
 
             synchronized (mQueueLockObject) {
-                // get the most recently accessed tile
-                // - the last item in the iterator that's not already being
-                // processed
-                MapTileRequestState state = popFirstPending();
+                if (mWorking.size() >= mConcurrency.getLimit()) {
+                    // enough loads are running, the loaders finishing them will pick up the rest
+                    return null;
+                }
+                // get the tile closest to the center of the viewport
+                MapTileRequestState state = popNextPending();
                 if (state != null) {
-                    mWorking.put(state.getMapTile(), state);
+                    mWorking.put(state.getMapTile().getKey(), state);
                     if (DEBUG_TILE_PROVIDERS) {
                         Log.i(TAG, "TileLoader.nextTile() on provider: "
                                 + getName()
@@ -276,6 +492,20 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             pState.getCallback().mapTileRequestCompleted(pState, pDrawable);
         }
 
+        /**
+         * The request was cancelled while the tile was loading.
+         */
+        protected void tileLoadCancelled(final MapTileRequestState pState) {
+            if (DEBUG_TILE_PROVIDERS) {
+                Log.i(TAG, "TileLoader.tileLoadCancelled() on provider: "
+                        + getName()
+                        + " with tile: "
+                        + pState.getMapTile());
+            }
+            removeTileFromQueues(pState.getMapTile());
+            pState.getCallback().mapTileRequestCancelled(pState);
+        }
+
         /**
          * A tile has loaded but it's expired.
          * Return it <b>and</b> send request to next provider.
@@ -290,6 +520,47 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             pState.getCallback().mapTileRequestExpiredTile(pState, pDrawable);
         }
 
+        /**
+         * The tile failed to load but should be tried again after
+         * {@link MapTileRequestState#getRetryDelay()}. It goes back to the pending queue, and a
+         * loader is started once the delay is over.
+         */
+        protected void tileLoadRetried(final MapTileRequestState pState) {
+            final long delay = pState.getRetryDelay();
+            if (DEBUG_TILE_PROVIDERS) {
+                Log.i(TAG, "TileLoader.tileLoadRetried() on provider: "
+                        + getName()
+                        + " in "
+                        + delay
+                        + "ms with tile: "
+                        + pState.getMapTile());
+            }
+            pState.setRetryDelay(0);
+            pState.setNotBefore(SystemClock.elapsedRealtime() + delay);
+            MapTileRequestState dropped = null;
+            synchronized (mQueueLockObject) {
+                final long key = pState.getMapTile().getKey();
+                mWorking.remove(key);
+                mPending.put(key, pState);
+                if (mPending.size() > mPendingQueueSize) {
+                    dropped = popLastPending();
+                }
+            }
+            if (dropped != null) {
+                dropped.getCallback().mapTileRequestFailed(dropped);
+            }
+            try {
+                sRetryScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startTileLoaders(1);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                Log.w(TAG, "RejectedExecutionException", e);
+            }
+        }
+
         protected void tileLoadedFailed(final MapTileRequestState pState) {
             if (DEBUG_TILE_PROVIDERS) {
                 Log.i(TAG, "TileLoader.tileLoadedFailed() on provider: "
@@ -314,6 +585,8 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             MapTileRequestState state;
             Drawable result = null;
             while ((state = nextTile()) != null) {
+                state.setDownloadLatency(-1);
+                state.setTransportFailure(false);
                 try {
                     result = null;
                     result = loadTile(state);
@@ -324,7 +597,17 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                     Log.e(TAG, "Error downloading tile: " + state.getMapTile(), e);
                 }
 
-                if (result == null) {
+                // only downloads actually sent tell something about the network: cache hits,
+                // local archives and requests waiting for the same download aren't reported, and
+                // a missing tile isn't a failure
+                if (!state.isCancelled() && state.getDownloadLatency() >= 0) {
+                    onTileLoadFinished(!state.isTransportFailure(), state.getDownloadLatency());
+                }
+                if (state.isCancelled()) {
+                    tileLoadCancelled(state);
+                } else if (result == null && state.getRetryDelay() > 0) {
+                    tileLoadRetried(state);
+                } else if (result == null) {
                     tileLoadedFailed(state);
                 } else if (BitmapUtils.isCacheDrawableExpired(result)) {
                     tileLoadedExpired(state, (CacheableBitmapDrawable) result);
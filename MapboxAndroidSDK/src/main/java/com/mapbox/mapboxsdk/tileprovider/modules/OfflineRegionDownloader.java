@@ -0,0 +1,406 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.content.Context;
+import android.graphics.PointF;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
+import com.mapbox.mapboxsdk.util.GeometryMath;
+import com.mapbox.mapboxsdk.util.HostCircuitBreaker;
+import com.mapbox.mapboxsdk.views.util.Projection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads every tile of a {@link WebSourceTileLayer} covering a {@link BoundingBox} between two
+ * zoom levels, so that the region can be displayed without a network connection. Tiles go
+ * through the same HTTP client as the map and are stored, as downloaded, in the disk tier of a
+ * {@link MapTileCache}. Tiles which are already there are skipped, so starting a new download of
+ * the same region after an interruption resumes it.
+ * <p/>
+ * Failed downloads are retried after the delay given by the layer. While the circuit breaker of
+ * a tile host is open the download pauses until the host is tried again, instead of counting
+ * every remaining tile as failed.
+ * <p/>
+ * The disk cache evicts tiles once it is full: large regions need a {@link MapTileCache} created
+ * with a large enough size before the map creates its own, or can be stored into an MBTiles file
+ * with {@link #setOutputArchive(MBTilesFileArchive)}.
+ */
+public class OfflineRegionDownloader implements TileLayerConstants {
+
+    /**
+     * Receives the progress of a download. All methods are called from background threads.
+     */
+    public static interface Listener {
+        /**
+         * A tile has been handled, whether it was downloaded, skipped or failed.
+         *
+         * @param downloader the downloader
+         * @param completed the number of tiles handled so far
+         * @param total the number of tiles in the region
+         */
+        void onDownloadProgress(OfflineRegionDownloader downloader, long completed, long total);
+
+        /**
+         * All tiles have been handled.
+         *
+         * @param downloader the downloader
+         * @param failed the number of tiles which couldn't be downloaded
+         */
+        void onDownloadFinished(OfflineRegionDownloader downloader, long failed);
+
+        /**
+         * The download was stopped with {@link #cancel()}.
+         *
+         * @param downloader the downloader
+         */
+        void onDownloadCancelled(OfflineRegionDownloader downloader);
+    }
+
+    private final WebSourceTileLayer mTileLayer;
+    private final MapTileCache mTileCache;
+    private final BoundingBox mBoundingBox;
+    private final int mMinZoom;
+    private final int mMaxZoom;
+    private final boolean mHdpi;
+    private int mThreadCount = NUMBER_OF_OFFLINE_DOWNLOAD_THREADS;
+    private Listener mListener;
+    private MBTilesFileArchive mOutputArchive;
+
+    private final AtomicLong mCompleted = new AtomicLong(0);
+    private final AtomicLong mFailed = new AtomicLong(0);
+    private long mTotal;
+    private volatile boolean mCancelled = false;
+    private volatile HostCircuitBreaker mOpenCircuit;
+    private Thread mThread = null;
+
+    /**
+     * Initialize the download of a region, use {@link #start()} to begin it.
+     *
+     * @param aContext the context, used to open the cache and pick the tile resolution
+     * @param aTileLayer the layer to download tiles from
+     * @param aBoundingBox the region to download
+     * @param aMinZoom the lowest zoom level to download
+     * @param aMaxZoom the highest zoom level to download
+     */
+    public OfflineRegionDownloader(final Context aContext, final WebSourceTileLayer aTileLayer,
+            final BoundingBox aBoundingBox, final int aMinZoom, final int aMaxZoom) {
+        this(aContext, aTileLayer, new MapTileCache(aContext), aBoundingBox, aMinZoom, aMaxZoom);
+    }
+
+    /**
+     * Initialize the download of a region into a given cache, use {@link #start()} to begin it.
+     *
+     * @param aContext the context, used to pick the tile resolution
+     * @param aTileLayer the layer to download tiles from
+     * @param aTileCache the cache to store tiles into
+     * @param aBoundingBox the region to download
+     * @param aMinZoom the lowest zoom level to download
+     * @param aMaxZoom the highest zoom level to download
+     */
+    public OfflineRegionDownloader(final Context aContext, final WebSourceTileLayer aTileLayer,
+            final MapTileCache aTileCache, final BoundingBox aBoundingBox, final int aMinZoom,
+            final int aMaxZoom) {
+        if (aTileLayer == null || aBoundingBox == null) {
+            throw new IllegalArgumentException("A tile layer and a bounding box are required.");
+        }
+        this.mTileLayer = aTileLayer;
+        this.mTileCache = aTileCache;
+        this.mBoundingBox = aBoundingBox;
+        this.mMinZoom = Math.max(aMinZoom, MINIMUM_ZOOMLEVEL);
+        this.mMaxZoom = Math.min(aMaxZoom, MAXIMUM_ZOOMLEVEL);
+        this.mHdpi = aContext.getResources().getDisplayMetrics().densityDpi
+                > DisplayMetrics.DENSITY_HIGH;
+    }
+
+    /**
+     * Sets the listener receiving the progress of the download.
+     */
+    public OfflineRegionDownloader setListener(final Listener aListener) {
+        this.mListener = aListener;
+        return this;
+    }
+
+    /**
+     * Sets how many tiles are downloaded at the same time. Must be called before
+     * {@link #start()}.
+     */
+    public OfflineRegionDownloader setThreadCount(final int aThreadCount) {
+        this.mThreadCount = Math.max(1, aThreadCount);
+        return this;
+    }
+
+    /**
+     * Stores the tiles into a writable MBTiles archive instead of the disk cache. The archive is
+     * flushed and its metadata updated once the download stops, it is left open. Must be called
+     * before {@link #start()}.
+     *
+     * @param aArchive an archive opened with
+     * {@link MBTilesFileArchive#getWritableDatabaseFileArchive(java.io.File)}
+     */
+    public OfflineRegionDownloader setOutputArchive(final MBTilesFileArchive aArchive) {
+        if (aArchive != null && !aArchive.isWritable()) {
+            throw new IllegalArgumentException("The MBTiles archive must be writable.");
+        }
+        this.mOutputArchive = aArchive;
+        return this;
+    }
+
+    /**
+     * Counts the tiles covering the region at all requested zoom levels.
+     *
+     * @return the number of tiles
+     */
+    public long getTileCount() {
+        long count = 0;
+        final Rect range = new Rect();
+        for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+            getTileRange(zoom, range);
+            count += (long) (range.right - range.left + 1) * (range.bottom - range.top + 1);
+        }
+        return count;
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null && mThread.isAlive();
+    }
+
+    /**
+     * Starts downloading the region in the background.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("This download has already been started.");
+        }
+        mThread = new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "offline region")
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        download();
+                    }
+                });
+        mThread.start();
+    }
+
+    /**
+     * Stops the download. Tiles being downloaded are still stored, the others are left for the
+     * next download of this region.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Computes the tiles covering the region at a zoom level. When the region crosses the
+     * antimeridian, the right column is past the number of tiles at this zoom level.
+     */
+    private void getTileRange(final int aZoom, final Rect aRange) {
+        final int tileSize = Projection.getTileSize();
+        final PointF upperLeft = Projection.latLongToPixelXY(mBoundingBox.getLatNorth(),
+                mBoundingBox.getLonWest(), aZoom, null);
+        final PointF lowerRight = Projection.latLongToPixelXY(mBoundingBox.getLatSouth(),
+                mBoundingBox.getLonEast(), aZoom, null);
+        aRange.set((int) upperLeft.x / tileSize, (int) upperLeft.y / tileSize,
+                (int) lowerRight.x / tileSize, (int) lowerRight.y / tileSize);
+        if (aRange.right < aRange.left) {
+            aRange.right += 1 << aZoom;
+        }
+    }
+
+    private void download() {
+        mTotal = getTileCount();
+        final ExecutorService executor = Executors.newFixedThreadPool(mThreadCount,
+                new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "offline download"));
+        // keep only a few tiles queued, a region can hold millions of them
+        final Semaphore slots = new Semaphore(mThreadCount * 2);
+        final Rect range = new Rect();
+
+        try {
+            for (int zoom = mMinZoom; zoom <= mMaxZoom && !mCancelled; zoom++) {
+                getTileRange(zoom, range);
+                final int mapTileUpperBound = 1 << zoom;
+                for (int y = range.top; y <= range.bottom && !mCancelled; y++) {
+                    for (int x = range.left; x <= range.right && !mCancelled; x++) {
+                        final HostCircuitBreaker circuit = mOpenCircuit;
+                        if (circuit != null) {
+                            waitForHost(circuit);
+                        }
+                        final MapTile tile = new MapTile(mTileLayer.getCacheKey(), zoom,
+                                GeometryMath.mod(x, mapTileUpperBound), y);
+                        if (hasTile(tile)) {
+                            onTileDone(true);
+                            continue;
+                        }
+                        slots.acquire();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (!mCancelled) {
+                                        final boolean stored = downloadTile(tile);
+                                        // tiles abandoned because of a cancellation aren't failed
+                                        if (stored || !mCancelled) {
+                                            onTileDone(stored);
+                                        }
+                                    }
+                                } finally {
+                                    slots.release();
+                                }
+                            }
+                        });
+                    }
+                }
+            }
+            // wait for the last tiles
+            slots.acquire(mThreadCount * 2);
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "Offline download interrupted", e);
+            mCancelled = true;
+        } finally {
+            executor.shutdown();
+        }
+
+        if (mOutputArchive != null) {
+            // tiles still being stored by cancelled workers are written when the archive closes
+            writeArchiveMetadata();
+        }
+
+        if (mListener != null) {
+            if (mCancelled) {
+                mListener.onDownloadCancelled(this);
+            } else {
+                mListener.onDownloadFinished(this, mFailed.get());
+            }
+        }
+    }
+
+    /**
+     * Whether a tile has already been stored, in which case it doesn't need to be downloaded.
+     */
+    protected boolean hasTile(final MapTile aTile) {
+        if (mOutputArchive != null) {
+            return mOutputArchive.hasTile(aTile);
+        }
+        return mTileCache.containsTileInDiskCache(aTile);
+    }
+
+    /**
+     * Downloads a single tile and stores it. Failed downloads are retried after the delay given
+     * by the layer, up to {@link #TILE_DOWNLOAD_MAXIMUM_ATTEMPTS} attempts. While the host is
+     * rejected by its circuit breaker, this waits for it without counting attempts.
+     *
+     * @return true if the tile is stored
+     */
+    protected boolean downloadTile(final MapTile aTile) {
+        final MapTileRequestState state = new MapTileRequestState(aTile, null, null);
+        byte[] data;
+        try {
+            while (true) {
+                data = mTileLayer.getTileData(aTile, mHdpi, mTileCache, state);
+                if (data != null || mCancelled) {
+                    break;
+                }
+                final HostCircuitBreaker circuit = state.getOpenCircuit();
+                final long retryDelay = state.getRetryDelay();
+                if (circuit != null) {
+                    state.setOpenCircuit(null);
+                    mOpenCircuit = circuit;
+                    waitForHost(circuit);
+                } else if (retryDelay > 0
+                        && state.getDownloadAttempts() < TILE_DOWNLOAD_MAXIMUM_ATTEMPTS) {
+                    state.setRetryDelay(0);
+                    Thread.sleep(retryDelay);
+                } else {
+                    break;
+                }
+            }
+        } catch (final InterruptedException e) {
+            return false;
+        }
+        if (data == null) {
+            if (!mCancelled) {
+                Log.d(TAG, "Failed to download tile " + aTile);
+            }
+            return false;
+        }
+        if (mOutputArchive != null) {
+            try {
+                mOutputArchive.putTile(aTile, data);
+                return true;
+            } catch (final SQLiteException e) {
+                Log.e(TAG, "Failed to store tile " + aTile, e);
+                return false;
+            }
+        }
+        return mTileCache.putTileDataInDiskCache(aTile, data);
+    }
+
+    /**
+     * Waits until the circuit breaker of a host lets requests through again, or the download is
+     * cancelled.
+     */
+    private void waitForHost(final HostCircuitBreaker aCircuit) throws InterruptedException {
+        long remaining = aCircuit.getRemainingOpenTime();
+        if (remaining > 0) {
+            Log.i(TAG, "Pausing the download while " + aCircuit.getHost() + " is unavailable");
+        }
+        while (remaining > 0 && !mCancelled) {
+            Thread.sleep(Math.min(remaining, OFFLINE_DOWNLOAD_PAUSE_POLL_MS));
+            remaining = aCircuit.getRemainingOpenTime();
+        }
+    }
+
+    private void writeArchiveMetadata() {
+        try {
+            mOutputArchive.flush();
+            final String name = mTileLayer.getName();
+            mOutputArchive.putMetadata("name", name != null ? name : mTileLayer.getCacheKey());
+            mOutputArchive.putMetadata("type", "baselayer");
+            mOutputArchive.putMetadata("version", "1.0.0");
+            if (mTileLayer.getDescription() != null) {
+                mOutputArchive.putMetadata("description", mTileLayer.getDescription());
+            }
+            if (mTileLayer.getAttribution() != null) {
+                mOutputArchive.putMetadata("attribution", mTileLayer.getAttribution());
+            }
+            mOutputArchive.putMetadata("bounds", mBoundingBox.getLonWest() + ","
+                    + mBoundingBox.getLatSouth() + "," + mBoundingBox.getLonEast() + ","
+                    + mBoundingBox.getLatNorth());
+            mOutputArchive.putMetadata("minzoom", Integer.toString(mMinZoom));
+            mOutputArchive.putMetadata("maxzoom", Integer.toString(mMaxZoom));
+        } catch (final SQLiteException e) {
+            Log.e(TAG, "Failed to write the MBTiles archive", e);
+        }
+    }
+
+    private void onTileDone(final boolean success) {
+        if (!success) {
+            mFailed.incrementAndGet();
+        }
+        final long completed = mCompleted.incrementAndGet();
+        if (mListener != null) {
+            mListener.onDownloadProgress(this, completed, mTotal);
+        }
+    }
+
+    private static final String TAG = "OfflineRegionDownloader";
+}
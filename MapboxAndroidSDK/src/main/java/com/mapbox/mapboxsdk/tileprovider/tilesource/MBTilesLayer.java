@@ -127,12 +127,14 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
             final MapTile aTile, boolean hdpi) {
         if (mbTilesFileArchive != null) {
-            InputStream stream = mbTilesFileArchive.getInputStream(this, aTile);
-            if (stream != null) {
-                CacheableBitmapDrawable result =
-                        downloader.getCache().putTileStream(aTile, stream, null);
+            final byte[] data = mbTilesFileArchive.getTileData(aTile);
+            if (data != null) {
+                // MBTiles tiles already live on the device, only keep them in memory
+                // instead of duplicating them in the disk cache.
+                CacheableBitmapDrawable result = downloader.getCache()
+                        .putTileDataInMemoryCache(aTile, data, null);
                 if (result == null) {
-                    Log.d(TAG, "error reading stream from mbtiles");
+                    Log.d(TAG, "error decoding tile from mbtiles");
                 }
                 return result;
             }
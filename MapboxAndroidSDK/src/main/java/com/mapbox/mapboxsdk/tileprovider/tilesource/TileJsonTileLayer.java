@@ -4,6 +4,7 @@ import android.os.AsyncTask;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -131,10 +132,7 @@ public class TileJsonTileLayer extends WebSourceTileLayer {
 
     byte[] readFully(InputStream in) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        for (int count; (count = in.read(buffer)) != -1;) {
-            out.write(buffer, 0, count);
-        }
+        StreamUtils.copy(in, out);
         return out.toByteArray();
     }
 
@@ -4,6 +4,8 @@ import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileMetadata;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewConstants;
@@ -22,6 +24,8 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
     protected BoundingBox mBoundingBox = WORLD_BOUNDING_BOX;
     protected LatLng mCenter = new LatLng(0, 0);
     private final int mTileSizePixels = DEFAULT_TILE_SIZE;
+    protected long mMaximumTileAge = 0;
+    protected boolean mHonourCacheControl = true;
 
     public TileLayer(final String pId, final String aUrl) {
         mUrl = aUrl;
@@ -76,11 +80,75 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
         return this;
     }
 
+    /**
+     * Sets how long tiles of this layer stay fresh once downloaded. Stale tiles are still drawn
+     * from the cache, but refreshed in the background. By default tiles stay fresh as long as
+     * the server allows, or forever if it doesn't say.
+     *
+     * @param aMaximumTileAge the age in milliseconds, or 0 to only rely on the server
+     */
+    public TileLayer setMaximumTileAge(final long aMaximumTileAge) {
+        this.mMaximumTileAge = Math.max(aMaximumTileAge, 0);
+        return this;
+    }
+
+    public long getMaximumTileAge() {
+        return mMaximumTileAge;
+    }
+
+    /**
+     * Sets whether the Cache-Control and Expires headers sent with tiles decide how long they
+     * stay fresh. When they don't, or when the server sends none, the maximum tile age does.
+     */
+    public TileLayer setHonourCacheControl(final boolean aHonourCacheControl) {
+        this.mHonourCacheControl = aHonourCacheControl;
+        return this;
+    }
+
+    public boolean getHonourCacheControl() {
+        return mHonourCacheControl;
+    }
+
+    /**
+     * Applies the freshness policy of this layer to the caching information of a download. A
+     * tile which expires stays fresh for at least {@link #TILE_MINIMUM_FRESHNESS_MS} after being
+     * fetched or revalidated, even if the server asks for it to be revalidated every time.
+     *
+     * @param aMetadata the caching information sent by the server
+     * @return the caching information to store with the tile
+     */
+    public MapTileMetadata applyFreshnessPolicy(final MapTileMetadata aMetadata) {
+        long expiresAt = mHonourCacheControl ? aMetadata.getExpiresAt() : 0;
+        if (expiresAt == 0 && mMaximumTileAge > 0) {
+            expiresAt = aMetadata.getFetchedAt() + mMaximumTileAge;
+        }
+        if (expiresAt > 0) {
+            expiresAt = Math.max(expiresAt, aMetadata.getFetchedAt() + TILE_MINIMUM_FRESHNESS_MS);
+        }
+        return new MapTileMetadata(aMetadata.getETag(), aMetadata.getLastModified(),
+                aMetadata.getFetchedAt(), expiresAt,
+                mHonourCacheControl && aMetadata.isNoStore());
+    }
+
     public Drawable getDrawableFromTile(final MapTileDownloader downloader, final MapTile aTile,
             boolean hdpi) {
         return null;
     }
 
+    /**
+     * Load the tile of a request. Layers which can abort their work should override this and
+     * give up as soon as the request is cancelled.
+     *
+     * @param downloader the downloader loading the tile
+     * @param aState the request, its tile is the one to load
+     * @param hdpi whether the tile should be at 2x or retina size
+     * @return the tile, or null if it couldn't be loaded
+     */
+    public Drawable getDrawableFromTile(final MapTileDownloader downloader,
+            final MapTileRequestState aState, boolean hdpi) {
+        return getDrawableFromTile(downloader, aState.getMapTile(), hdpi);
+    }
+
     @Override
     public void detach() {
 
@@ -3,21 +3,34 @@ package com.mapbox.mapboxsdk.tileprovider.tilesource;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileMetadata;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
+import com.mapbox.mapboxsdk.tileprovider.util.TileDataBuffer;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.util.HostCircuitBreaker;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -27,6 +40,98 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public class WebSourceTileLayer extends TileLayer {
     private static final String TAG = "WebSourceTileLayer";
 
+    // Closes the connections of cancelled requests, cancelling can happen on the UI thread.
+    private static final ExecutorService sDisconnectExecutor = Executors.newSingleThreadExecutor(
+            new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, "tile disconnect"));
+
+    // Downloads in progress by URL, shared by every layer and map view of the process.
+    private static final ConcurrentHashMap<String, PendingDownload> sPendingDownloads =
+            new ConcurrentHashMap<String, PendingDownload>();
+
+    // How often a request waiting for another one's download checks whether it was cancelled.
+    private static final long PENDING_DOWNLOAD_POLL_MS = 100;
+
+    // Not defined by HttpURLConnection.
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * A download other requests for the same URL can wait for.
+     */
+    private static final class PendingDownload {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile TileResponse response;
+        // whether the download was abandoned because its request was cancelled
+        volatile boolean cancelled;
+        // the delay after which the download should be tried again, if it failed
+        volatile long retryDelay;
+    }
+
+    /**
+     * The outcome of a tile download. Its bytes live in a pooled buffer, so every response
+     * must be {@link #release() released} once it has been used.
+     */
+    public static class TileResponse {
+        private final TileDataBuffer mBuffer;
+        private final MapTileMetadata mMetadata;
+        private final boolean mNotModified;
+
+        TileResponse(final TileDataBuffer aBuffer, final MapTileMetadata aMetadata,
+                final boolean aNotModified) {
+            this.mBuffer = aBuffer;
+            this.mMetadata = aMetadata;
+            this.mNotModified = aNotModified;
+        }
+
+        /**
+         * @return a copy of the downloaded bytes, null when the tile was not modified
+         */
+        public byte[] getData() {
+            return mBuffer != null ? mBuffer.toByteArray() : null;
+        }
+
+        /**
+         * @return the buffer holding the downloaded bytes, valid until this response is
+         * released, or null when the tile was not modified
+         */
+        public TileDataBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return the caching information sent by the server
+         */
+        public MapTileMetadata getMetadata() {
+            return mMetadata;
+        }
+
+        /**
+         * @return true if the server answered a conditional request with 304 Not Modified
+         */
+        public boolean isNotModified() {
+            return mNotModified;
+        }
+
+        /**
+         * Adds a user of this response, who must release it too.
+         *
+         * @return false if the response was already released and its bytes reused
+         */
+        boolean retain() {
+            return mBuffer == null || mBuffer.retain();
+        }
+
+        /**
+         * Gives the buffer of this response back once every user has released it.
+         */
+        public void release() {
+            if (mBuffer != null) {
+                mBuffer.release();
+            }
+        }
+    }
+
     // Tracks the number of threads active in the getBitmapFromURL method.
     private AtomicInteger activeThreads = new AtomicInteger(0);
     protected boolean mEnableSSL = false;
@@ -105,6 +210,13 @@ public class WebSourceTileLayer extends TileLayer {
     @Override
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
             final MapTile aTile, boolean hdpi) {
+        return getDrawableFromTile(downloader, new MapTileRequestState(aTile, null, null), hdpi);
+    }
+
+    @Override
+    public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
+            final MapTileRequestState aState, boolean hdpi) {
+        final MapTile aTile = aState.getMapTile();
         if (downloader.isNetworkAvailable()) {
             TilesLoadedListener listener = downloader.getTilesLoadedListener();
 
@@ -113,23 +225,57 @@ public class WebSourceTileLayer extends TileLayer {
             Bitmap resultBitmap = null;
             if (urls != null) {
                 MapTileCache cache = downloader.getCache();
+                // another map view sharing this layer may have loaded it while it was queued
+                result = cache.getMapTileFromMemory(aTile);
+                if (result != null && !BitmapUtils.isCacheDrawableExpired(result)) {
+                    return result;
+                }
+                result = null;
                 if (listener != null) {
                     listener.onTilesLoadStarted();
                 }
-                for (final String url : urls) {
-                    Bitmap bitmap = getBitmapFromURL(url, cache);
-                    if (bitmap == null) {
-                        continue;
+                if (urls.length == 1) {
+                    // Single source: keep the downloaded bytes so the disk cache stores the
+                    // original image instead of a re-encoded bitmap. A tile already on disk is
+                    // only downloaded again if the server says it changed.
+                    final MapTileMetadata cached = aState.isDiskMetadataRead()
+                            ? aState.getDiskMetadata() : cache.getTileMetadata(aTile);
+                    final TileResponse response = getResponseFromURL(urls[0], aState,
+                            (cached != null && cached.hasValidators()) ? cached : null);
+                    try {
+                        if (response != null && !aState.isCancelled()) {
+                            result = putResponse(cache, aTile, cached, response);
+                        }
+                    } finally {
+                        if (response != null) {
+                            response.release();
+                        }
                     }
-                    if (resultBitmap == null) {
-                        resultBitmap = bitmap;
-                    } else {
-                        resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                } else {
+                    for (final String url : urls) {
+                        Bitmap bitmap = getBitmapFromURL(url, cache, aState);
+                        if (aState.isCancelled() || aState.getRetryDelay() > 0) {
+                            resultBitmap = null;
+                            break;
+                        }
+                        if (bitmap == null) {
+                            continue;
+                        }
+                        if (resultBitmap == null) {
+                            resultBitmap = bitmap;
+                        } else {
+                            resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                        }
+                    }
+                    if (resultBitmap != null) {
+                        //get drawable by putting it into cache (memory and disk)
+                        result = cache.putTileBitmap(aTile, resultBitmap);
+                        // composited tiles have no validators, only the maximum age applies
+                        if (result != null && mMaximumTileAge > 0) {
+                            cache.putTileMetadata(aTile, applyFreshnessPolicy(new MapTileMetadata(
+                                    null, null, System.currentTimeMillis(), 0)));
+                        }
                     }
-                }
-                if (resultBitmap != null) {
-                    //get drawable by putting it into cache (memory and disk)
-                    result = cache.putTileBitmap(aTile, resultBitmap);
                 }
                 if (checkThreadControl()) {
                     if (listener != null) {
@@ -150,6 +296,93 @@ public class WebSourceTileLayer extends TileLayer {
         return null;
     }
 
+    /**
+     * Puts a downloaded tile in the caches, decoding it straight from the download buffer.
+     *
+     * @param aCached the caching information of the copy the request revalidated, if any
+     */
+    private CacheableBitmapDrawable putResponse(final MapTileCache aCache, final MapTile aTile,
+            final MapTileMetadata aCached, final TileResponse aResponse) {
+        final MapTileMetadata metadata = applyFreshnessPolicy(aResponse.getMetadata());
+        if (aResponse.isNotModified()) {
+            return revalidateTile(aCache, aTile, aCached.revalidated(metadata));
+        }
+        final TileDataBuffer buffer = aResponse.getBuffer();
+        if (buffer == null) {
+            return null;
+        }
+        // a request which shared this download may have decoded it already
+        final CacheableBitmapDrawable result = aCache.getMapTileFromMemory(aTile);
+        if (result != null && !BitmapUtils.isCacheDrawableExpired(result)) {
+            return result;
+        }
+        if (metadata.isNoStore()) {
+            return aCache.putTileDataInMemoryCache(aTile, buffer.getData(), 0, buffer.getLength(),
+                    null, metadata);
+        }
+        return aCache.putTileData(aTile, buffer.getData(), 0, buffer.getLength(), null,
+                metadata);
+    }
+
+    /**
+     * Keeps using a cached tile the server confirmed is unchanged: its expiration is pushed back,
+     * and it is only decoded if it isn't in memory anymore.
+     */
+    private CacheableBitmapDrawable revalidateTile(final MapTileCache aCache, final MapTile aTile,
+            final MapTileMetadata aMetadata) {
+        aCache.putTileMetadata(aTile, aMetadata);
+        final CacheableBitmapDrawable drawable = aCache.getMapTileFromMemory(aTile);
+        if (drawable != null) {
+            BitmapUtils.clearCacheDrawableExpired(drawable);
+            return drawable;
+        }
+        return aCache.getMapTileFromDisk(aTile);
+    }
+
+    /**
+     * Downloads the image of a tile without putting it in any cache. When this layer has several
+     * sources they are composited and the result is compressed as a PNG.
+     *
+     * @param aTile the tile to download
+     * @param hdpi whether the tile should be at 2x or retina size
+     * @param aCache a cache, used to decode the images to composite
+     * @param aState the request the download is made for, can be null
+     * @return the compressed tile image, or null if the download failed or was cancelled, in
+     * which case the request tells whether it should be retried
+     */
+    public byte[] getTileData(final MapTile aTile, final boolean hdpi, final MapTileCache aCache,
+            final MapTileRequestState aState) {
+        final String[] urls = getTileURLs(aTile, hdpi);
+        if (urls == null || urls.length == 0) {
+            return null;
+        }
+        if (urls.length == 1) {
+            return getDataFromURL(urls[0], aState);
+        }
+        Bitmap resultBitmap = null;
+        for (final String url : urls) {
+            final Bitmap bitmap = getBitmapFromURL(url, aCache, aState);
+            if (aState != null && (aState.isCancelled() || aState.getRetryDelay() > 0
+                    || aState.getOpenCircuit() != null)) {
+                return null;
+            }
+            if (bitmap == null) {
+                continue;
+            }
+            if (resultBitmap == null) {
+                resultBitmap = bitmap;
+            } else {
+                resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+            }
+        }
+        if (resultBitmap == null) {
+            return null;
+        }
+        final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+        resultBitmap.compress(Bitmap.CompressFormat.PNG, 100, dataStream);
+        return dataStream.toByteArray();
+    }
+
     /**
      * Requests and returns a bitmap object from a given URL, using aCache to decode it.
      *
@@ -158,38 +391,375 @@ public class WebSourceTileLayer extends TileLayer {
      * @return the tile if valid, otherwise null
      */
     public Bitmap getBitmapFromURL(final String url, final MapTileCache aCache) {
+        return getBitmapFromURL(url, aCache, null);
+    }
+
+    /**
+     * Requests and decodes a bitmap from a given URL, straight from the download buffer.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param aCache a cache, an instance of MapTileCache
+     * @param aState the request the download is made for, can be null
+     * @return the bitmap, or null if the download failed or was cancelled
+     */
+    private Bitmap getBitmapFromURL(final String url, final MapTileCache aCache,
+            final MapTileRequestState aState) {
+        final TileResponse response = getResponseFromURL(url, aState, null);
+        if (response == null) {
+            return null;
+        }
+        try {
+            final TileDataBuffer buffer = response.getBuffer();
+            return (buffer != null)
+                    ? aCache.decodeBitmap(buffer.getData(), 0, buffer.getLength(), null) : null;
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Requests and returns the raw, still compressed, content of a given URL.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @return the downloaded bytes, or null if the download failed
+     */
+    public byte[] getDataFromURL(final String url) {
+        return getDataFromURL(url, null);
+    }
+
+    /**
+     * Requests and returns the raw, still compressed, content of a given URL. The download is
+     * aborted as soon as the given request is cancelled, and shared with concurrent requests for
+     * the same URL, see {@link #getResponseFromURL(String, MapTileRequestState, MapTileMetadata)}.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param aState the request the download is made for, can be null
+     * @return the downloaded bytes, or null if the download failed or was cancelled
+     */
+    public byte[] getDataFromURL(final String url, final MapTileRequestState aState) {
+        final TileResponse response = getResponseFromURL(url, aState, null);
+        if (response == null) {
+            return null;
+        }
+        try {
+            return response.getData();
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Requests the content of a given URL, along with its HTTP caching information. When the
+     * validators of a cached copy are given, the request is conditional and the server may answer
+     * that the cached copy is still valid instead of sending it again.
+     * <p/>
+     * Concurrent requests for the same URL, from any layer or map view, share a single download:
+     * the first one downloads it and the others wait for its result. If the first request is
+     * cancelled, one of the waiting requests starts the download again. If it is to be retried,
+     * the waiting requests are retried after the same delay.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param aState the request the download is made for, can be null
+     * @param aValidators the caching information of the cached copy, can be null
+     * @return the response, which must be released, or null if the download failed or was
+     * cancelled
+     */
+    public TileResponse getResponseFromURL(final String url, final MapTileRequestState aState,
+            final MapTileMetadata aValidators) {
+        if (TextUtils.isEmpty(url)) {
+            return null;
+        }
+        // conditional requests only share their download with other conditional ones, which
+        // all revalidate the same copy since every map view shares the disk cache
+        final String key = (aValidators != null) ? "conditional:" + url : url;
+        while (aState == null || !aState.isCancelled()) {
+            final PendingDownload download = new PendingDownload();
+            final PendingDownload pending = sPendingDownloads.putIfAbsent(key, download);
+            if (pending == null) {
+                try {
+                    download.response = downloadFromURL(url, aState, aValidators);
+                } finally {
+                    download.cancelled = aState != null && aState.isCancelled();
+                    download.retryDelay = (aState != null) ? aState.getRetryDelay() : 0;
+                    sPendingDownloads.remove(key, download);
+                    download.done.countDown();
+                }
+                return download.response;
+            }
+
+            try {
+                while (!pending.done.await(PENDING_DOWNLOAD_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (aState != null && aState.isCancelled()) {
+                        return null;
+                    }
+                }
+            } catch (final InterruptedException e) {
+                return null;
+            }
+            if (!pending.cancelled) {
+                final TileResponse response = pending.response;
+                if (response == null && aState != null && pending.retryDelay > 0) {
+                    aState.setRetryDelay(pending.retryDelay);
+                    return null;
+                }
+                if (response == null || response.retain()) {
+                    return response;
+                }
+                // every other user was done with the response before this one woke up and its
+                // buffer was reused, the tile has to be downloaded again
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the content of a URL, on behalf of all requests waiting for it. Network errors,
+     * server errors and 429 responses are retried after a random, exponentially growing delay,
+     * unless the circuit breaker of the host is open. The delay isn't waited here when there is
+     * a request: it is given a {@link MapTileRequestState#setRetryDelay(long) retry delay}, and
+     * its provider queues it again, so that no loader is held while waiting.
+     */
+    private TileResponse downloadFromURL(final String url, final MapTileRequestState aState,
+            final MapTileMetadata aValidators) {
         // We track the active threads here, every exit point should decrement this value.
         activeThreads.incrementAndGet();
-        InputStream in = null;
-        OutputStream out = null;
 
-        if (TextUtils.isEmpty(url)) {
+        if (TextUtils.isEmpty(url) || (aState != null && aState.isCancelled())) {
             activeThreads.decrementAndGet();
             return null;
         }
 
         try {
-            HttpURLConnection connection = NetworkUtils.getHttpURLConnection(new URL(url));
+            final URL tileUrl = new URL(url);
+            final HostCircuitBreaker breaker =
+                    NetworkUtils.getTileHostCircuitBreaker(tileUrl.getHost());
+            final int firstAttempt = (aState != null) ? aState.getDownloadAttempts() + 1 : 1;
+            for (int attempt = firstAttempt; ; attempt++) {
+                if (!breaker.allowRequest()) {
+                    if (DEBUG_TILE_PROVIDERS) {
+                        Log.d(TAG, "Circuit open, skipping MapTile: " + url);
+                    }
+                    if (aState != null) {
+                        aState.setOpenCircuit(breaker);
+                    }
+                    return null;
+                }
+                if (aState != null) {
+                    aState.setDownloadAttempts(attempt);
+                    aState.setTransportFailure(false);
+                }
+                long retryDelay;
+                try {
+                    final TileResponse response = downloadOnce(tileUrl, aState, aValidators);
+                    breaker.onSuccess();
+                    return response;
+                } catch (final NotSentException e) {
+                    breaker.onCancelled();
+                    return null;
+                } catch (final RetryableResponseException e) {
+                    breaker.onFailure();
+                    retryDelay = Math.max(e.getRetryAfterMs(), getRetryDelay(attempt));
+                } catch (final IOException e) {
+                    if (aState != null && aState.isCancelled()) {
+                        breaker.onCancelled();
+                        return null;
+                    }
+                    breaker.onFailure();
+                    retryDelay = getRetryDelay(attempt);
+                }
+                if (aState != null) {
+                    aState.setTransportFailure(true);
+                }
+                if (attempt >= TILE_DOWNLOAD_MAXIMUM_ATTEMPTS
+                        || retryDelay > TILE_DOWNLOAD_RETRY_MAXIMUM_DELAY_MS) {
+                    Log.d(TAG, "Giving up downloading MapTile after " + attempt + " attempts: "
+                            + url);
+                    return null;
+                }
+                breaker.onRetry();
+                if (aState != null) {
+                    aState.setRetryDelay(retryDelay);
+                    return null;
+                }
+                if (!sleepBeforeRetry(retryDelay)) {
+                    return null;
+                }
+            }
+        } catch (final Throwable e) {
+            if (aState == null || !aState.isCancelled()) {
+                Log.d(TAG, "Error downloading MapTile: " + url + ":" + e);
+            }
+        } finally {
+            activeThreads.decrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Computes the delay before retrying a download, a random duration between 0 and the base
+     * delay doubled at each attempt, so that clients which failed together don't retry together.
+     *
+     * @param aAttempt the number of the attempt which failed, starting from 1
+     */
+    private static long getRetryDelay(final int aAttempt) {
+        final long ceiling = Math.min(TILE_DOWNLOAD_RETRY_BASE_DELAY_MS << (aAttempt - 1),
+                TILE_DOWNLOAD_RETRY_MAXIMUM_DELAY_MS);
+        return (long) (sRandom.nextDouble() * ceiling);
+    }
+
+    /**
+     * Waits before retrying a download made without a request, on the thread of its caller.
+     *
+     * @return true if the download should go on, false if the thread was interrupted
+     */
+    private static boolean sleepBeforeRetry(final long aDelayMs) {
+        try {
+            Thread.sleep(aDelayMs);
+            return true;
+        } catch (final InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes a single attempt at downloading the content of a URL. The request is given the
+     * latency of the download, counted once a permit of the host is held so that time spent
+     * waiting behind other requests isn't mistaken for a slow network.
+     *
+     * @return the response, or null if the server doesn't have the tile or the request was
+     * cancelled while reading it
+     * @throws NotSentException if the request was cancelled or interrupted before being sent
+     * @throws RetryableResponseException if the server answered with an error worth retrying
+     * @throws IOException if the download failed
+     */
+    private TileResponse downloadOnce(final URL tileUrl, final MapTileRequestState aState,
+            final MapTileMetadata aValidators) throws IOException {
+        final Semaphore permits = NetworkUtils.getTileHostPermits(tileUrl.getHost());
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            throw new NotSentException();
+        }
+        InputStream in = null;
+        long sentAt = -1;
+        try {
+            if (aState != null && aState.isCancelled()) {
+                throw new NotSentException();
+            }
+            sentAt = SystemClock.elapsedRealtime();
+            final HttpURLConnection connection = NetworkUtils.getTileHttpURLConnection(tileUrl);
+            if (aState != null) {
+                aState.setCancelAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        sDisconnectExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                connection.disconnect();
+                            }
+                        });
+                    }
+                });
+            }
+            if (aValidators != null) {
+                if (aValidators.getETag() != null) {
+                    connection.setRequestProperty("If-None-Match", aValidators.getETag());
+                }
+                if (aValidators.getLastModified() != null) {
+                    connection.setRequestProperty("If-Modified-Since",
+                            aValidators.getLastModified());
+                }
+            }
+            final int responseCode = connection.getResponseCode();
+            final MapTileMetadata metadata =
+                    MapTileMetadata.fromConnection(connection, System.currentTimeMillis());
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && aValidators != null) {
+                return new TileResponse(null, metadata, true);
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                StreamUtils.closeStream(connection.getErrorStream());
+                if (responseCode == HTTP_TOO_MANY_REQUESTS
+                        || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    throw new RetryableResponseException(responseCode,
+                            getRetryAfterMs(connection));
+                }
+                Log.d(TAG, "HTTP " + responseCode + " downloading MapTile: " + tileUrl);
+                return null;
+            }
             in = connection.getInputStream();
 
             if (in == null) {
-                Log.d(TAG, "No content downloading MapTile: " + url);
+                Log.d(TAG, "No content downloading MapTile: " + tileUrl);
                 return null;
             }
 
-            final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE);
-            StreamUtils.copy(in, out);
-            out.flush();
-            final byte[] data = dataStream.toByteArray();
-            return aCache.decodeBitmap(data, null);
-        } catch (final Throwable e) {
-            Log.d(TAG, "Error downloading MapTile: " + url + ":" + e);
+            // read the body once, straight into a reusable buffer which is then decoded and
+            // written to the disk cache as is
+            final TileDataBuffer buffer = TileDataBuffer.obtain(connection.getContentLength());
+            boolean complete = false;
+            try {
+                complete = buffer.readFrom(in, aState);
+            } finally {
+                if (!complete) {
+                    buffer.release();
+                }
+            }
+            return complete ? new TileResponse(buffer, metadata, false) : null;
         } finally {
+            if (aState != null) {
+                aState.setCancelAction(null);
+                if (sentAt >= 0) {
+                    aState.setDownloadLatency(SystemClock.elapsedRealtime() - sentAt);
+                }
+            }
             StreamUtils.closeStream(in);
-            StreamUtils.closeStream(out);
-            activeThreads.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    /**
+     * Reads the Retry-After header of a response, when given in seconds.
+     *
+     * @return the delay the server asked for, in milliseconds, or 0
+     */
+    private static long getRetryAfterMs(final HttpURLConnection aConnection) {
+        final String retryAfter = aConnection.getHeaderField("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Math.max(Long.parseLong(retryAfter.trim()) * 1000, 0);
+            } catch (final NumberFormatException e) {
+                // an HTTP date, use our own backoff instead
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A request which was given up before reaching the server, it says nothing about the host.
+     */
+    private static final class NotSentException extends IOException {
+        private static final long serialVersionUID = -6240382357305542876L;
+
+        NotSentException() {
+            super("Request not sent");
+        }
+    }
+
+    /**
+     * A response with a status code indicating a transient server problem.
+     */
+    private static final class RetryableResponseException extends IOException {
+        private static final long serialVersionUID = 3411548384735592318L;
+
+        private final long mRetryAfterMs;
+
+        RetryableResponseException(final int aResponseCode, final long aRetryAfterMs) {
+            super("HTTP " + aResponseCode);
+            this.mRetryAfterMs = aRetryAfterMs;
+        }
+
+        long getRetryAfterMs() {
+            return mRetryAfterMs;
         }
-        return null;
     }
 }
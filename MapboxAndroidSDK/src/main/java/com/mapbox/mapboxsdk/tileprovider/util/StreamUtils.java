@@ -6,6 +6,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import uk.co.senab.bitmapcache.ByteArrayPool;
 
 public class StreamUtils {
 
@@ -18,8 +19,8 @@ public class StreamUtils {
     }
 
     /**
-     * Copy the content of the input stream into the output stream, using a temporary byte array
-     * buffer whose size is defined by {@link #IO_BUFFER_SIZE}.
+     * Copy the content of the input stream into the output stream, using a pooled byte array
+     * buffer whose size is at least {@link #IO_BUFFER_SIZE}.
      *
      * @param in The input stream to copy from.
      * @param out The output stream to copy to.
@@ -28,11 +29,15 @@ public class StreamUtils {
      */
     public static long copy(final InputStream in, final OutputStream out) throws IOException {
         long length = 0;
-        final byte[] b = new byte[IO_BUFFER_SIZE];
-        int read;
-        while ((read = in.read(b)) != -1) {
-            out.write(b, 0, read);
-            length += read;
+        final byte[] b = ByteArrayPool.get(IO_BUFFER_SIZE);
+        try {
+            int read;
+            while ((read = in.read(b)) != -1) {
+                out.write(b, 0, read);
+                length += read;
+            }
+        } finally {
+            ByteArrayPool.put(b);
         }
         return length;
     }
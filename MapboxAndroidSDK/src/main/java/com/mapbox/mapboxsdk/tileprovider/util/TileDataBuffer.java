@@ -0,0 +1,115 @@
+package com.mapbox.mapboxsdk.tileprovider.util;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.co.senab.bitmapcache.ByteArrayPool;
+
+/**
+ * The compressed bytes of a tile, read straight from a stream into a byte array taken from the
+ * {@link ByteArrayPool}. The same bytes are decoded and written to the disk cache, without being
+ * copied, and the array goes back to the pool once every user has released it.
+ * <p/>
+ * The bytes are valid from index 0 to {@link #getLength()}, the array is usually larger.
+ */
+public final class TileDataBuffer {
+
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+    private byte[] mData;
+    private int mLength = 0;
+
+    private TileDataBuffer(final byte[] aData) {
+        this.mData = aData;
+    }
+
+    /**
+     * Gets an empty buffer, backed by a pooled array. The caller owns a reference to it and must
+     * {@link #release()} it.
+     *
+     * @param aExpectedLength the expected length of the data, or -1 if it is unknown
+     * @return the buffer
+     */
+    public static TileDataBuffer obtain(final int aExpectedLength) {
+        return new TileDataBuffer(ByteArrayPool.get(
+                Math.max(aExpectedLength, TileLayerConstants.TILE_DATA_BUFFER_SIZE)));
+    }
+
+    /**
+     * Reads a stream until its end, appending its content to this buffer.
+     *
+     * @param in the stream, which isn't closed
+     * @param aState the request the data is read for, can be null
+     * @return false if the request was cancelled before the end of the stream
+     * @throws IOException if reading failed
+     */
+    public boolean readFrom(final InputStream in, final MapTileRequestState aState)
+            throws IOException {
+        int read;
+        while (true) {
+            if (mLength == mData.length) {
+                final byte[] grown = ByteArrayPool.get(mData.length * 2);
+                System.arraycopy(mData, 0, grown, 0, mLength);
+                ByteArrayPool.put(mData);
+                mData = grown;
+            }
+            read = in.read(mData, mLength, mData.length - mLength);
+            if (read == -1) {
+                return true;
+            }
+            mLength += read;
+            if (aState != null && aState.isCancelled()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the array holding the data, only valid up to {@link #getLength()} and until this
+     * buffer is released
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return a copy of the data, which stays valid after this buffer is released
+     */
+    public byte[] toByteArray() {
+        final byte[] copy = new byte[mLength];
+        System.arraycopy(mData, 0, copy, 0, mLength);
+        return copy;
+    }
+
+    /**
+     * Adds a reference to this buffer, for another user of its data.
+     *
+     * @return false if the buffer was already released by everyone, and can't be used anymore
+     */
+    public boolean retain() {
+        while (true) {
+            final int references = mReferences.get();
+            if (references <= 0) {
+                return false;
+            }
+            if (mReferences.compareAndSet(references, references + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes a reference to this buffer. Once the last one is removed its array goes back to the
+     * pool.
+     */
+    public void release() {
+        if (mReferences.decrementAndGet() == 0) {
+            ByteArrayPool.put(mData);
+        }
+    }
+}
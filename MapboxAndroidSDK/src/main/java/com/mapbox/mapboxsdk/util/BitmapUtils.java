@@ -14,6 +14,7 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.StateSet;
 import java.lang.reflect.Field;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -54,6 +55,15 @@ public class BitmapUtils {
         }
     }
 
+    /**
+     * Marks an expired drawable as fresh again, once the server confirmed it didn't change.
+     */
+    public static void clearCacheDrawableExpired(CacheableBitmapDrawable drawable) {
+        if (drawable != null && drawable.getState() == EXPIRED) {
+            drawable.setState(StateSet.WILD_CARD);
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static class ActivityManagerHoneycomb {
         static int getLargeMemoryClass(ActivityManager activityManager) {
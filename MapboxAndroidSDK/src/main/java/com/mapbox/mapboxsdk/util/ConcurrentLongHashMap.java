@@ -0,0 +1,197 @@
+package com.mapbox.mapboxsdk.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread safe map keyed by primitive longs, using open addressing with linear probing. Lookups
+ * take no lock and allocate nothing, so it can be queried on the UI thread for every tile of
+ * every frame while loader threads update it. Updates are serialized on the map.
+ * <p/>
+ * A slot is bound to its key until the table is rebuilt: removing a key leaves a tombstone,
+ * which only the same key can fill again. That way a lookup never sees the value of a key in
+ * the slot of another. Tombstones are dropped whenever the table is rebuilt. The table never
+ * shrinks, so that a map whose keys keep changing rebuilds it only after a number of updates
+ * proportional to its capacity.
+ *
+ * @param <V> the type of the values
+ */
+public final class ConcurrentLongHashMap<V> {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    // value of a slot whose key was removed
+    private static final Object TOMBSTONE = new Object();
+
+    private static final class Table {
+        final AtomicLongArray mKeys;
+        // null for a slot which was never used
+        final AtomicReferenceArray<Object> mValues;
+
+        Table(final int aCapacity) {
+            mKeys = new AtomicLongArray(aCapacity);
+            mValues = new AtomicReferenceArray<Object>(aCapacity);
+        }
+
+        int capacity() {
+            return mValues.length();
+        }
+
+        /**
+         * @return the slot of the key, or the never used slot where it would go
+         */
+        int indexOf(final long aKey) {
+            final int mask = capacity() - 1;
+            int index = LongHashMap.hash(aKey) & mask;
+            while (mValues.get(index) != null && mKeys.get(index) != aKey) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+    }
+
+    private volatile Table mTable;
+    private volatile int mSize = 0;
+    // slots holding a value or a tombstone, only accessed while holding the lock
+    private int mUsed = 0;
+
+    public ConcurrentLongHashMap() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * @param aExpectedSize the number of entries the map can hold without being rebuilt
+     */
+    public ConcurrentLongHashMap(final int aExpectedSize) {
+        mTable = new Table(getCapacity(aExpectedSize));
+    }
+
+    private static int getCapacity(final int aSize) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity / 2 < aSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(final long aKey) {
+        final Table table = mTable;
+        final int mask = table.capacity() - 1;
+        int index = LongHashMap.hash(aKey) & mask;
+        // the value is read once per slot: a slot found unused may be taken by another key
+        // right after, but the key of a used slot never changes
+        Object value;
+        while ((value = table.mValues.get(index)) != null) {
+            if (table.mKeys.get(index) == aKey) {
+                return (value == TOMBSTONE) ? null : (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(final long aKey) {
+        return get(aKey) != null;
+    }
+
+    /**
+     * @return the previous value of the key, or null if it wasn't present
+     */
+    public synchronized V put(final long aKey, final V aValue) {
+        return put(aKey, aValue, false);
+    }
+
+    /**
+     * Maps the key to the value, unless it is already mapped.
+     *
+     * @return the current value of the key, or null if it wasn't present and got mapped
+     */
+    public synchronized V putIfAbsent(final long aKey, final V aValue) {
+        return put(aKey, aValue, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(final long aKey, final V aValue, final boolean aOnlyIfAbsent) {
+        if (aValue == null) {
+            throw new NullPointerException("null values aren't supported");
+        }
+        Table table = mTable;
+        int index = table.indexOf(aKey);
+        Object previous = table.mValues.get(index);
+        if (previous != null && previous != TOMBSTONE) {
+            if (!aOnlyIfAbsent) {
+                table.mValues.set(index, aValue);
+            }
+            return (V) previous;
+        }
+        if (previous == null) {
+            if ((mUsed + 1) * 2 > table.capacity()) {
+                // mostly tombstones: dropping them at the same capacity leaves at least a
+                // quarter of the slots free, otherwise grow
+                final boolean grow = (mSize + 1) * 4 > table.capacity();
+                table = rebuild(grow ? table.capacity() * 2 : table.capacity());
+                index = table.indexOf(aKey);
+            }
+            mUsed++;
+            // the key must be visible before the value that makes the slot used
+            table.mKeys.set(index, aKey);
+        }
+        table.mValues.set(index, aValue);
+        mSize++;
+        return null;
+    }
+
+    /**
+     * Copies the live entries into a new table of the given capacity, and publishes it. Must be
+     * called while holding the lock.
+     */
+    private Table rebuild(final int aCapacity) {
+        final Table old = mTable;
+        final Table table = new Table(aCapacity);
+        int used = 0;
+        for (int i = 0; i < old.capacity(); i++) {
+            final Object value = old.mValues.get(i);
+            if (value != null && value != TOMBSTONE) {
+                final long key = old.mKeys.get(i);
+                final int index = table.indexOf(key);
+                table.mKeys.set(index, key);
+                table.mValues.set(index, value);
+                used++;
+            }
+        }
+        mUsed = used;
+        mTable = table;
+        return table;
+    }
+
+    /**
+     * @return the value of the removed key, or null if it wasn't present
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(final long aKey) {
+        final Table table = mTable;
+        final int index = table.indexOf(aKey);
+        final Object previous = table.mValues.get(index);
+        if (previous == null || previous == TOMBSTONE) {
+            return null;
+        }
+        table.mValues.set(index, TOMBSTONE);
+        mSize--;
+        return (V) previous;
+    }
+
+    public synchronized void clear() {
+        mTable = new Table(mTable.capacity());
+        mSize = 0;
+        mUsed = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+}
@@ -0,0 +1,173 @@
+package com.mapbox.mapboxsdk.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+
+/**
+ * Stops requests to a tile server which keeps failing, so that a server incident doesn't turn
+ * into a flood of doomed requests.
+ * <p/>
+ * After a number of consecutive failures the breaker opens and rejects every request for a
+ * while. Once that delay is over a single trial request is let through: if it succeeds the
+ * breaker closes again, otherwise it stays open for twice as long, up to a maximum.
+ * The breaker also counts requests, retries and failures for monitoring.
+ * This class is thread safe.
+ */
+public class HostCircuitBreaker implements TileLayerConstants {
+
+    private final String mHost;
+
+    private int mConsecutiveFailures = 0;
+    private long mOpenUntil = 0;
+    private long mOpenDuration = TILE_HOST_OPEN_DURATION_MS;
+    private boolean mTrialPending = false;
+
+    private long mRequestCount = 0;
+    private long mRejectedCount = 0;
+    private long mFailureCount = 0;
+    private long mRetryCount = 0;
+    private long mTripCount = 0;
+
+    public HostCircuitBreaker(final String aHost) {
+        this.mHost = aHost;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Checks whether a request may be sent to the host. Every allowed request should report its
+     * outcome with {@link #onSuccess()}, {@link #onFailure()} or {@link #onCancelled()}.
+     *
+     * @return true if the request may be sent, false if the breaker is open
+     */
+    public synchronized boolean allowRequest() {
+        if (mConsecutiveFailures >= TILE_HOST_FAILURE_THRESHOLD) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now < mOpenUntil) {
+                mRejectedCount++;
+                return false;
+            }
+            // let a single trial through, the next one waits for another open period unless
+            // this one succeeds first
+            mOpenUntil = now + mOpenDuration;
+            mTrialPending = true;
+        }
+        mRequestCount++;
+        return true;
+    }
+
+    /**
+     * The host answered, even with an error which isn't its fault like a missing tile.
+     */
+    public synchronized void onSuccess() {
+        if (DEBUG_TILE_PROVIDERS && mConsecutiveFailures >= TILE_HOST_FAILURE_THRESHOLD) {
+            Log.d(TAG, "Circuit closed for " + mHost);
+        }
+        mConsecutiveFailures = 0;
+        mTrialPending = false;
+        mOpenDuration = TILE_HOST_OPEN_DURATION_MS;
+    }
+
+    /**
+     * The request failed because of the network or the host.
+     */
+    public synchronized void onFailure() {
+        mFailureCount++;
+        mConsecutiveFailures++;
+        if (mConsecutiveFailures < TILE_HOST_FAILURE_THRESHOLD) {
+            return;
+        }
+        if (mConsecutiveFailures > TILE_HOST_FAILURE_THRESHOLD) {
+            if (!mTrialPending) {
+                // a request sent before the breaker opened
+                return;
+            }
+            // the trial request failed
+            mTrialPending = false;
+            mOpenDuration = Math.min(mOpenDuration * 2, TILE_HOST_MAXIMUM_OPEN_DURATION_MS);
+        }
+        mOpenUntil = SystemClock.elapsedRealtime() + mOpenDuration;
+        mTripCount++;
+        Log.w(TAG, "Circuit opened for " + mHost + " during " + mOpenDuration + "ms after "
+                + mConsecutiveFailures + " consecutive failures");
+    }
+
+    /**
+     * The request was abandoned before the host answered, so it tells nothing about the host.
+     * If it was the trial request, the next one is let through right away instead of waiting
+     * for another open period.
+     */
+    public synchronized void onCancelled() {
+        if (mTrialPending) {
+            mTrialPending = false;
+            mOpenUntil = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * A failed request is about to be retried.
+     */
+    public synchronized void onRetry() {
+        mRetryCount++;
+    }
+
+    /**
+     * @return whether requests to the host are currently rejected
+     */
+    public synchronized boolean isOpen() {
+        return mConsecutiveFailures >= TILE_HOST_FAILURE_THRESHOLD
+                && SystemClock.elapsedRealtime() < mOpenUntil;
+    }
+
+    /**
+     * @return how long, in milliseconds, requests to the host will still be rejected, or 0 if
+     *         they are allowed
+     */
+    public synchronized long getRemainingOpenTime() {
+        if (mConsecutiveFailures < TILE_HOST_FAILURE_THRESHOLD) {
+            return 0;
+        }
+        return Math.max(mOpenUntil - SystemClock.elapsedRealtime(), 0);
+    }
+
+    /**
+     * @return the number of requests which were allowed, retries included
+     */
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return the number of requests rejected because the breaker was open
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return how many times the breaker opened
+     */
+    public synchronized long getTripCount() {
+        return mTripCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HostCircuitBreaker [host=" + mHost + ", open=" + isOpen() + ", requests="
+                + mRequestCount + ", rejected=" + mRejectedCount + ", failures=" + mFailureCount
+                + ", retries=" + mRetryCount + ", trips=" + mTripCount + "]";
+    }
+
+    private static final String TAG = "HostCircuitBreaker";
+}
@@ -0,0 +1,233 @@
+package com.mapbox.mapboxsdk.util;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A map keyed by primitive longs, such as packed tile coordinates, which doesn't box its keys and
+ * spreads them with a strong mixing function. Like {@link java.util.LinkedHashMap} it iterates
+ * in insertion order, putting a key which is already present doesn't change its position.
+ * <p/>
+ * This class isn't thread safe.
+ *
+ * @param <V> the type of the values
+ */
+public final class LongHashMap<V> {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private static final class Entry<V> {
+        final long mKey;
+        V mValue;
+        Entry<V> mNext;
+        Entry<V> mBefore;
+        Entry<V> mAfter;
+
+        Entry(final long aKey, final V aValue) {
+            mKey = aKey;
+            mValue = aValue;
+        }
+    }
+
+    // sentinel of the circular list of entries, in insertion order
+    private final Entry<V> mHeader = new Entry<V>(0, null);
+    private Entry<V>[] mTable;
+    private int mSize = 0;
+    private int mModCount = 0;
+
+    public LongHashMap() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * @param aExpectedSize the number of entries the map can hold without growing
+     */
+    public LongHashMap(final int aExpectedSize) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity * 3 / 4 < aExpectedSize) {
+            capacity *= 2;
+        }
+        mTable = newTable(capacity);
+        mHeader.mBefore = mHeader;
+        mHeader.mAfter = mHeader;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V>[] newTable(final int aCapacity) {
+        return new Entry[aCapacity];
+    }
+
+    /**
+     * The finalizer of MurmurHash3, every bit of the key affects every bit of the result.
+     *
+     * @return the mixed key
+     */
+    public static long mix(long aKey) {
+        aKey ^= aKey >>> 33;
+        aKey *= 0xff51afd7ed558ccdL;
+        aKey ^= aKey >>> 33;
+        aKey *= 0xc4ceb9fe1a85ec53L;
+        aKey ^= aKey >>> 33;
+        return aKey;
+    }
+
+    /**
+     * @return a well distributed hash code for the given key
+     */
+    public static int hash(final long aKey) {
+        final long mixed = mix(aKey);
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    private Entry<V> getEntry(final long aKey) {
+        Entry<V> entry = mTable[hash(aKey) & (mTable.length - 1)];
+        while (entry != null && entry.mKey != aKey) {
+            entry = entry.mNext;
+        }
+        return entry;
+    }
+
+    public V get(final long aKey) {
+        final Entry<V> entry = getEntry(aKey);
+        return (entry != null) ? entry.mValue : null;
+    }
+
+    public boolean containsKey(final long aKey) {
+        return getEntry(aKey) != null;
+    }
+
+    /**
+     * @return the previous value of the key, or null if it wasn't present
+     */
+    public V put(final long aKey, final V aValue) {
+        final Entry<V> existing = getEntry(aKey);
+        if (existing != null) {
+            final V previous = existing.mValue;
+            existing.mValue = aValue;
+            return previous;
+        }
+
+        if (mSize >= mTable.length * 3 / 4) {
+            resize(mTable.length * 2);
+        }
+        final Entry<V> entry = new Entry<V>(aKey, aValue);
+        final int index = hash(aKey) & (mTable.length - 1);
+        entry.mNext = mTable[index];
+        mTable[index] = entry;
+        entry.mAfter = mHeader;
+        entry.mBefore = mHeader.mBefore;
+        mHeader.mBefore.mAfter = entry;
+        mHeader.mBefore = entry;
+        mSize++;
+        mModCount++;
+        return null;
+    }
+
+    /**
+     * @return the value of the removed key, or null if it wasn't present
+     */
+    public V remove(final long aKey) {
+        final int index = hash(aKey) & (mTable.length - 1);
+        Entry<V> previous = null;
+        Entry<V> entry = mTable[index];
+        while (entry != null && entry.mKey != aKey) {
+            previous = entry;
+            entry = entry.mNext;
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (previous == null) {
+            mTable[index] = entry.mNext;
+        } else {
+            previous.mNext = entry.mNext;
+        }
+        unlink(entry);
+        return entry.mValue;
+    }
+
+    private void unlink(final Entry<V> aEntry) {
+        aEntry.mBefore.mAfter = aEntry.mAfter;
+        aEntry.mAfter.mBefore = aEntry.mBefore;
+        mSize--;
+        mModCount++;
+    }
+
+    private void resize(final int aCapacity) {
+        final Entry<V>[] table = newTable(aCapacity);
+        for (Entry<V> entry = mHeader.mAfter; entry != mHeader; entry = entry.mAfter) {
+            final int index = hash(entry.mKey) & (aCapacity - 1);
+            entry.mNext = table[index];
+            table[index] = entry;
+        }
+        mTable = table;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = null;
+        }
+        mHeader.mBefore = mHeader;
+        mHeader.mAfter = mHeader;
+        mSize = 0;
+        mModCount++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return the values, in insertion order. Their iterator supports {@link Iterator#remove()}.
+     */
+    public Iterable<V> values() {
+        return new Iterable<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+        };
+    }
+
+    private final class ValueIterator implements Iterator<V> {
+        private Entry<V> mNextEntry = mHeader.mAfter;
+        private Entry<V> mLastReturned = null;
+        private int mExpectedModCount = mModCount;
+
+        @Override
+        public boolean hasNext() {
+            return mNextEntry != mHeader;
+        }
+
+        @Override
+        public V next() {
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (mNextEntry == mHeader) {
+                throw new NoSuchElementException();
+            }
+            mLastReturned = mNextEntry;
+            mNextEntry = mNextEntry.mAfter;
+            return mLastReturned.mValue;
+        }
+
+        @Override
+        public void remove() {
+            if (mLastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            LongHashMap.this.remove(mLastReturned.mKey);
+            mLastReturned = null;
+            mExpectedModCount = mModCount;
+        }
+    }
+}
@@ -9,6 +9,8 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.HttpResponseCache;
 import com.squareup.okhttp.OkHttpClient;
 import javax.net.ssl.SSLSocketFactory;
@@ -17,8 +19,55 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.ResponseCache;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class NetworkUtils {
+
+    /**
+     * The client shared by every tile download, so that connections, DNS results and TLS
+     * sessions are reused from one tile to the next.
+     */
+    private static OkHttpClient sTileHttpClient = null;
+
+    private static int sMaxTileRequestsPerHost =
+            TileLayerConstants.TILE_DOWNLOAD_MAXIMUM_REQUESTS_PER_HOST;
+
+    /**
+     * The permits of a host, whose number can change while some of them are held: requests
+     * already running keep their permit and give it back to the same semaphore.
+     */
+    private static final class TileHostPermits extends Semaphore {
+        private static final long serialVersionUID = -2316582935183428167L;
+
+        private int mMaxPermits;
+
+        TileHostPermits(final int maxPermits) {
+            super(maxPermits, true);
+            mMaxPermits = maxPermits;
+        }
+
+        synchronized void setMaxPermits(final int maxPermits) {
+            final int difference = maxPermits - mMaxPermits;
+            mMaxPermits = maxPermits;
+            if (difference > 0) {
+                release(difference);
+            } else if (difference < 0) {
+                // may go below zero until enough running requests are done
+                reducePermits(-difference);
+            }
+        }
+    }
+
+    private static final ConcurrentHashMap<String, TileHostPermits> sTileHostPermits =
+            new ConcurrentHashMap<String, TileHostPermits>();
+
+    private static final ConcurrentHashMap<String, HostCircuitBreaker> sTileHostCircuitBreakers =
+            new ConcurrentHashMap<String, HostCircuitBreaker>();
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager connectivityManager =
                 (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -47,6 +96,123 @@ public class NetworkUtils {
         return connection;
     }
 
+    /**
+     * Get the process-wide client used to download tiles, creating it first if needed.
+     * Over SSL this client also negotiates SPDY, which multiplexes tile requests to
+     * the same host over a single connection.
+     *
+     * @return the shared tile client
+     */
+    public static synchronized OkHttpClient getTileHttpClient() {
+        if (sTileHttpClient == null) {
+            sTileHttpClient = new OkHttpClient();
+            sTileHttpClient.setConnectionPool(
+                    new ConnectionPool(TileLayerConstants.TILE_CONNECTION_POOL_MAX_IDLE,
+                            TileLayerConstants.TILE_CONNECTION_KEEP_ALIVE_MS));
+            sTileHttpClient.setConnectTimeout(TileLayerConstants.TILE_CONNECT_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS);
+            sTileHttpClient.setReadTimeout(TileLayerConstants.TILE_READ_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        return sTileHttpClient;
+    }
+
+    /**
+     * Replace the connection pool of the shared tile client. Requests already running keep
+     * the pool they were opened with.
+     *
+     * @param maxIdleConnections the number of idle connections to keep open
+     * @param keepAliveDurationMs how long an idle connection is kept open, in milliseconds
+     */
+    public static synchronized void setTileConnectionPool(final int maxIdleConnections,
+            final long keepAliveDurationMs) {
+        getTileHttpClient().setConnectionPool(
+                new ConnectionPool(maxIdleConnections, keepAliveDurationMs));
+    }
+
+    /**
+     * Open a connection for a tile with the shared tile client.
+     *
+     * @param url the tile url
+     * @return the connection, not yet connected
+     */
+    public static HttpURLConnection getTileHttpURLConnection(final URL url) {
+        HttpURLConnection connection = getTileHttpClient().open(url);
+        connection.setRequestProperty("User-Agent", MapboxConstants.USER_AGENT);
+        return connection;
+    }
+
+    /**
+     * Set how many tile requests may run at the same time against a single host. When the limit
+     * is lowered, requests already running finish but no new one starts until the host is back
+     * under the new limit.
+     *
+     * @param maxRequests the maximum number of concurrent requests per host
+     */
+    public static void setMaxTileRequestsPerHost(final int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests must be at least 1");
+        }
+        synchronized (sTileHostPermits) {
+            sMaxTileRequestsPerHost = maxRequests;
+            for (TileHostPermits permits : sTileHostPermits.values()) {
+                permits.setMaxPermits(maxRequests);
+            }
+        }
+    }
+
+    /**
+     * Get the permits limiting concurrent tile requests to a host. Callers should acquire a
+     * permit before opening the connection and release it once the response has been read.
+     *
+     * @param host the host of the tile url
+     * @return the semaphore for this host
+     */
+    public static Semaphore getTileHostPermits(final String host) {
+        final TileHostPermits permits = sTileHostPermits.get(host);
+        if (permits != null) {
+            return permits;
+        }
+        synchronized (sTileHostPermits) {
+            // created under the lock so that a concurrent change of the limit can't miss it
+            TileHostPermits created = sTileHostPermits.get(host);
+            if (created == null) {
+                created = new TileHostPermits(sMaxTileRequestsPerHost);
+                sTileHostPermits.put(host, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Get the circuit breaker guarding tile requests to a host. Callers should check it before
+     * each request and report the outcome to it.
+     *
+     * @param host the host of the tile url
+     * @return the circuit breaker for this host
+     */
+    public static HostCircuitBreaker getTileHostCircuitBreaker(final String host) {
+        HostCircuitBreaker breaker = sTileHostCircuitBreakers.get(host);
+        if (breaker == null) {
+            final HostCircuitBreaker created = new HostCircuitBreaker(host);
+            breaker = sTileHostCircuitBreakers.putIfAbsent(host, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Get the circuit breakers of every tile host contacted so far, to monitor their requests
+     * and failures.
+     *
+     * @return a snapshot of the circuit breakers
+     */
+    public static Collection<HostCircuitBreaker> getTileHostCircuitBreakers() {
+        return new ArrayList<HostCircuitBreaker>(sTileHostCircuitBreakers.values());
+    }
+
     public static ResponseCache getResponseCache(final File cacheDir, final int maxSize) throws IOException {
         return new HttpResponseCache(cacheDir, maxSize);
     }
@@ -21,6 +21,15 @@ public abstract class TileLooper {
     protected List<CacheableBitmapDrawable> mBeingUsedDrawables =
             new ArrayList<CacheableBitmapDrawable>();
 
+    // The tiles of the current and previous loop, row by row from their upper left corner, so
+    // that a tile still visible is handled with the same instance instead of a new one
+    private MapTile[] mTiles = new MapTile[0];
+    private MapTile[] mPreviousTiles = new MapTile[0];
+    private int mPreviousLeft;
+    private int mPreviousTop;
+    private int mPreviousWidth = 0;
+    private int mPreviousHeight = 0;
+
     public final void loop(final Canvas pCanvas, final String pCacheKey, final float pZoomLevel,
             final int pTileSizePx, final Rect pViewPort, final Rect pClipRect) {
         // Calculate the amount of tiles needed for each side around the center one.
@@ -36,19 +45,47 @@ public abstract class TileLooper {
         final int mapTileUpperBound = 1 << roundedZoom;
         initializeLoop(pZoomLevel, pTileSizePx);
 
+        final int sourceId = MapTile.getSourceId(pCacheKey);
+        final int width = mLowerRight.x - mUpperLeft.x + 1;
+        final int height = mLowerRight.y - mUpperLeft.y + 1;
+        if (mTiles.length < width * height) {
+            mTiles = new MapTile[width * height];
+        }
+
         int tileX, tileY;
 
         for (int y = mUpperLeft.y; y <= mLowerRight.y; y++) {
             for (int x = mUpperLeft.x; x <= mLowerRight.x; x++) {
                 tileY = GeometryMath.mod(y, mapTileUpperBound);
                 tileX = GeometryMath.mod(x, mapTileUpperBound);
-                final MapTile tile = new MapTile(pCacheKey, roundedZoom, tileX, tileY);
+                MapTile tile = getPreviousTile(x, y);
+                if (tile == null || !tile.is(sourceId, roundedZoom, tileX, tileY)) {
+                    tile = new MapTile(pCacheKey, roundedZoom, tileX, tileY);
+                }
+                mTiles[(y - mUpperLeft.y) * width + x - mUpperLeft.x] = tile;
                 handleTile(pCanvas, pCacheKey, pTileSizePx, tile, x, y, pClipRect);
             }
         }
+
+        final MapTile[] previousTiles = mPreviousTiles;
+        mPreviousTiles = mTiles;
+        mTiles = previousTiles;
+        mPreviousLeft = mUpperLeft.x;
+        mPreviousTop = mUpperLeft.y;
+        mPreviousWidth = width;
+        mPreviousHeight = height;
         finalizeLoop();
     }
 
+    private MapTile getPreviousTile(final int x, final int y) {
+        final int column = x - mPreviousLeft;
+        final int row = y - mPreviousTop;
+        if (column < 0 || row < 0 || column >= mPreviousWidth || row >= mPreviousHeight) {
+            return null;
+        }
+        return mPreviousTiles[row * mPreviousWidth + column];
+    }
+
     public abstract void initializeLoop(float pZoomLevel, int pTileSizePx);
 
     public abstract void handleTile(Canvas pCanvas, final String pCacheKey, int pTileSizePx,
@@ -144,6 +144,7 @@ public class MapController implements MapViewConstants {
             }
             targetZoom = mMapView.getClampedZoomLevel(targetZoom);
             mMapView.mTargetZoomLevel.set(Float.floatToIntBits(targetZoom));
+            mMapView.getMapOverlay().getPrefetcher().setZoomDirection(1);
 
             float delta = Math.abs(targetZoom - currentZoom);
             mZoomAnimation.setFloatValues(1.0f, 1.0f + delta);
@@ -175,6 +176,7 @@ public class MapController implements MapViewConstants {
                     targetZoom = mMapView.getClampedZoomLevel((float) Math.floor(currentZoom) - 1);
                 }
                 mMapView.mTargetZoomLevel.set(Float.floatToIntBits(targetZoom));
+                mMapView.getMapOverlay().getPrefetcher().setZoomDirection(-1);
                 float delta = Math.abs(targetZoom - currentZoom);
                 mZoomAnimation.setFloatValues(1.0f, 1.0f / (1.0f + delta));
                 mZoomAnimation.start();
@@ -215,6 +217,7 @@ public class MapController implements MapViewConstants {
     }
 
     public void onAnimationEnd() {
+        mMapView.getMapOverlay().getPrefetcher().setZoomDirection(0);
         setZoom(Float.intBitsToFloat(mMapView.mTargetZoomLevel.get()));
         goTo(zoomOnLatLong, zoomDeltaScroll);
         (new Handler()).postDelayed(new Runnable() {
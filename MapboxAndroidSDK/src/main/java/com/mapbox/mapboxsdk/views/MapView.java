@@ -1306,6 +1306,9 @@ public class MapView extends ViewGroup
                 y = (int) (mScrollableAreaLimit.bottom - height_2);
             }
         }
+        if (mMapOverlay != null) {
+            mMapOverlay.getPrefetcher().onScroll(x - getScrollX(), y - getScrollY());
+        }
         super.scrollTo(x, y);
 
         // do callback on listener
@@ -115,6 +115,16 @@ public class BitmapLruCache {
     // flushed
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
 
+    // Each disk cache entry holds the image and a metadata string, which can be empty. Bumping
+    // the version drops caches written with another layout.
+    static final int DISK_CACHE_VERSION = 1;
+    static final int DISK_CACHE_VALUE_COUNT = 2;
+    static final int DISK_CACHE_INDEX_DATA = 0;
+    static final int DISK_CACHE_INDEX_METADATA = 1;
+
+    // Size of the scratch buffer BitmapFactory uses to decode streams
+    static final int DECODE_TEMP_STORAGE_SIZE = 16 * 1024;
+
     /**
      * @throws IllegalStateException if the calling thread is the main/UI thread.
      */
@@ -198,7 +208,14 @@ public class BitmapLruCache {
             checkNotOnMainThread();
 
             try {
-                return null != mDiskCache.get(transformUrlForDiskCacheKey(url));
+                // close the snapshot right away, all we want to know is whether it exists
+                final DiskLruCache.Snapshot snapshot =
+                        mDiskCache.get(transformUrlForDiskCacheKey(url));
+                if (null != snapshot) {
+                    snapshot.close();
+                    return true;
+                }
+                return false;
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -263,32 +280,67 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable getFromDiskCache(final String url,
             final BitmapFactory.Options decodeOpts) {
-        CacheableBitmapDrawable result = null;
-
-        if (null != mDiskCache) {
-            checkNotOnMainThread();
+        final DiskCacheEntry entry = getEntryFromDiskCache(url, decodeOpts);
+        return (null != entry) ? entry.getDrawable() : null;
+    }
 
-            try {
-                final String key = transformUrlForDiskCacheKey(url);
-                // Try and decode bitmap
-                result = decodeBitmapToDrawable(new SnapshotInputStreamProvider(key), url, decodeOpts);
+    /**
+     * Returns the value for {@code url} in the disk cache along with the metadata stored with it,
+     * both read from a single snapshot of the entry. The image is read into memory once, and
+     * decoded from there. You should not call this method from main/UI thread. <p/> If enabled,
+     * the drawable will be cached in the memory cache.
+     *
+     * @param url        - String representing the URL of the image
+     * @param decodeOpts - Options used for decoding the contents from the disk cache.
+     * @return the entry for {@code url} from disk cache, or {@code null} if the disk cache is not
+     *         enabled or the entry couldn't be decoded.
+     */
+    public DiskCacheEntry getEntryFromDiskCache(final String url,
+            final BitmapFactory.Options decodeOpts) {
+        if (null == mDiskCache) {
+            return null;
+        }
+        checkNotOnMainThread();
 
-                if (null != result) {
-                    if (null != mMemoryCache) {
-                        mMemoryCache.put(result);
-                    }
-                } else {
-                    // If we get here, the file in the cache can't be
-                    // decoded. Remove it and schedule a flush.
-                    mDiskCache.remove(key);
-                    scheduleDiskCacheFlush();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+        final String key = transformUrlForDiskCacheKey(url);
+        DiskLruCache.Snapshot snapshot = null;
+        byte[] data = null;
+        try {
+            snapshot = mDiskCache.get(key);
+            if (null == snapshot) {
+                return null;
+            }
+            final String metadata = snapshot.getString(DISK_CACHE_INDEX_METADATA);
+            final int length = (int) snapshot.getLength(DISK_CACHE_INDEX_DATA);
+            data = ByteArrayPool.get(length);
+            final boolean complete = IoUtils.readFully(
+                    snapshot.getInputStream(DISK_CACHE_INDEX_DATA), data, length);
+            snapshot.close();
+            snapshot = null;
+
+            // Try and decode bitmap
+            final CacheableBitmapDrawable result = complete ? decodeBitmapToDrawable(
+                    new ByteArrayInputStreamProvider(data, 0, length), url, decodeOpts) : null;
+            if (null == result) {
+                // If we get here, the file in the cache can't be
+                // decoded. Remove it and schedule a flush.
+                mDiskCache.remove(key);
+                scheduleDiskCacheFlush();
+                return null;
+            }
+            if (null != mMemoryCache) {
+                mMemoryCache.put(result);
+            }
+            return new DiskCacheEntry(result, metadata);
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while reading disk cache. URL: " + url, e);
+        } finally {
+            if (null != snapshot) {
+                snapshot.close();
             }
+            ByteArrayPool.put(data);
         }
-
-        return result;
+        return null;
     }
 
     /**
@@ -304,15 +356,8 @@ public class BitmapLruCache {
         CacheableBitmapDrawable result = null;
 
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                result = mMemoryCache.get(url);
-
-                // If we get a value, but it has a invalid bitmap, remove it
-                if (null != result && !result.isBitmapValid()) {
-                    mMemoryCache.remove(url);
-                    result = null;
-                }
-            }
+            // If we get a value, but it has a invalid bitmap, it is removed
+            result = mMemoryCache.getValid(url);
         }
 
         return result;
@@ -320,14 +365,46 @@ public class BitmapLruCache {
 
 
     public Bitmap getBitmapFromRemoved(final int width, final int height) {
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a mutable bitmap which isn't used anymore, from the bitmap pool or from the entries
+     * removed from the memory cache, to be drawn or decoded into instead of allocating a new one.
+     *
+     * @return a bitmap whose content is undefined, or null if none matches
+     */
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                return mMemoryCache.getBitmapFromRemoved(width, height);
-            }
+            return mMemoryCache.getBitmapFromRemoved(width, height, config);
         }
         return null;
     }
 
+    /**
+     * @return the pool of unused bitmaps, or null if bitmaps can't be reused on this device or
+     *         the memory cache is disabled
+     */
+    public BitmapPool getBitmapPool() {
+        return (null != mMemoryCache) ? mMemoryCache.getBitmapPool() : null;
+    }
+
+    /**
+     * @return how many times a thread had to wait for another one to access the memory cache, or
+     *         0 if it is disabled
+     */
+    public long getMemoryCacheContentionCount() {
+        return (null != mMemoryCache) ? mMemoryCache.getContentionCount() : 0;
+    }
+
+    /**
+     * @return how many times the memory cache was accessed, or 0 if it is disabled
+     */
+    public long getMemoryCacheAccessCount() {
+        return (null != mMemoryCache) ? mMemoryCache.getLockCount() : 0;
+    }
+
     /**
      * @return true if the Disk Cache is enabled.
      */
@@ -390,9 +467,7 @@ public class BitmapLruCache {
     public CacheableBitmapDrawable putInMemoryCache(final String url, final CacheableBitmapDrawable drawable,
                                                     Bitmap.CompressFormat compressFormat, int compressQuality) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.put(drawable);
-            }
+            mMemoryCache.put(drawable);
         }
         return drawable;
     }
@@ -428,9 +503,10 @@ public class BitmapLruCache {
 
             try {
                 DiskLruCache.Editor editor = mDiskCache.edit(key);
-                os = editor.newOutputStream(0);
+                os = editor.newOutputStream(DISK_CACHE_INDEX_DATA);
                 drawable.getBitmap().compress(compressFormat, compressQuality, os);
                 os.flush();
+                editor.set(DISK_CACHE_INDEX_METADATA, "");
                 editor.commit();
             } catch (IOException e) {
                 Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
@@ -496,20 +572,162 @@ public class BitmapLruCache {
             final BitmapFactory.Options decodeOpts) {
         checkNotOnMainThread();
 
+        // The data is already in memory, so decode it directly rather than going through a
+        // temporary file, and cache the original bytes rather than a re-compressed bitmap.
+        CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data),
+                url, decodeOpts);
+        if (null != d) {
+            if (null != mMemoryCache) {
+                d.setCached(true);
+                mMemoryCache.put(d.getUrl(), d);
+            }
+            putInDiskCache(url, data);
+        }
+        return d;
+    }
+
+    /**
+     * Caches the raw contents of {@code data} for {@code url} in the disk cache only, if it is
+     * enabled. Nothing is decoded, so this is the cheapest way to persist an image which has
+     * been downloaded but isn't needed in memory. <p/> You should not call this method from the
+     * main/UI thread.
+     *
+     * @param url  - String representing the URL of the image
+     * @param data - Raw data opened from {@code url}
+     * @return true if the data was written to the disk cache
+     */
+    public boolean putInDiskCache(final String url, final byte[] data) {
+        return putInDiskCache(url, data, null);
+    }
+
+    /**
+     * Caches the raw contents of {@code data} for {@code url} in the disk cache only, along with
+     * a metadata string. <p/> You should not call this method from the main/UI thread.
+     *
+     * @param url      - String representing the URL of the image
+     * @param data     - Raw data opened from {@code url}
+     * @param metadata - A string stored with the data, can be null
+     * @return true if the data was written to the disk cache
+     */
+    public boolean putInDiskCache(final String url, final byte[] data, final String metadata) {
+        return null != data && putInDiskCache(url, data, 0, data.length, metadata);
+    }
+
+    /**
+     * Caches {@code length} bytes of {@code data} starting at {@code offset} for {@code url} in
+     * the disk cache only, along with a metadata string. <p/> You should not call this method
+     * from the main/UI thread.
+     *
+     * @param url      - String representing the URL of the image
+     * @param data     - Array holding the raw data opened from {@code url}
+     * @param offset   - Index of the first byte of the data in {@code data}
+     * @param length   - Number of bytes of the data
+     * @param metadata - A string stored with the data, can be null
+     * @return true if the data was written to the disk cache
+     */
+    public boolean putInDiskCache(final String url, final byte[] data, final int offset,
+            final int length, final String metadata) {
+        if (null == mDiskCache || null == data) {
+            return false;
+        }
+        checkNotOnMainThread();
+
+        final String key = transformUrlForDiskCacheKey(url);
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
+
+        boolean success = false;
+        OutputStream os = null;
+        try {
+            DiskLruCache.Editor editor = mDiskCache.edit(key);
+            if (null != editor) {
+                os = editor.newOutputStream(DISK_CACHE_INDEX_DATA);
+                os.write(data, offset, length);
+                os.flush();
+                editor.set(DISK_CACHE_INDEX_METADATA, null != metadata ? metadata : "");
+                editor.commit();
+                success = true;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing to disk cache. URL: " + url, e);
+        } finally {
+            IoUtils.closeStream(os);
+            lock.unlock();
+            scheduleDiskCacheFlush();
+        }
+        return success;
+    }
+
+    /**
+     * Returns the metadata string stored with {@code url} in the disk cache. You should not call
+     * this method from the main/UI thread.
+     *
+     * @param url - String representing the URL of the image
+     * @return the metadata, empty if none was stored, or {@code null} if the disk cache is not
+     *         enabled or doesn't contain {@code url}
+     */
+    public String getDiskCacheMetadata(final String url) {
         if (null == mDiskCache) {
-            // shortcut to avoid temporary storage on disk
-            CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data), url,
-                    decodeOpts);
-            if (null != d) {
-                if (null != mMemoryCache) {
-                    d.setCached(true);
-                    mMemoryCache.put(d.getUrl(), d);
-                }
-                return d;
+            return null;
+        }
+        checkNotOnMainThread();
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskCache.get(transformUrlForDiskCacheKey(url));
+            if (null != snapshot) {
+                return snapshot.getString(DISK_CACHE_INDEX_METADATA);
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while reading disk cache metadata. URL: " + url, e);
+        } finally {
+            if (null != snapshot) {
+                snapshot.close();
             }
         }
+        return null;
+    }
+
+    /**
+     * Replaces the metadata string stored with {@code url} in the disk cache, leaving the cached
+     * image untouched. Nothing is written if the disk cache doesn't contain {@code url}. <p/> You
+     * should not call this method from the main/UI thread.
+     *
+     * @param url      - String representing the URL of the image
+     * @param metadata - The new metadata
+     * @return true if the metadata was written to the disk cache
+     */
+    public boolean putDiskCacheMetadata(final String url, final String metadata) {
+        if (null == mDiskCache || !containsInDiskCache(url)) {
+            return false;
+        }
+
+        final String key = transformUrlForDiskCacheKey(url);
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
 
-        return put(url, new ByteArrayInputStream(data), decodeOpts);
+        boolean success = false;
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskCache.edit(key);
+            if (null != editor) {
+                editor.set(DISK_CACHE_INDEX_METADATA, null != metadata ? metadata : "");
+                // the image of an existing entry is kept as is
+                editor.commit();
+                success = true;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing disk cache metadata. URL: " + url, e);
+        } catch (IllegalStateException e) {
+            // the entry was evicted in the meantime, so the edit would have created it without
+            // an image
+            Log.w(Constants.LOG_TAG, "Disk cache entry evicted before its metadata was written. "
+                    + "URL: " + url);
+        } finally {
+            lock.unlock();
+            scheduleDiskCacheFlush();
+        }
+        return success;
     }
 
     /**
@@ -562,9 +780,7 @@ public class BitmapLruCache {
             if (d != null) {
                 if (null != mMemoryCache) {
                     d.setCached(true);
-                    synchronized (mMemoryCache) {
-                        mMemoryCache.put(d.getUrl(), d);
-                    }
+                    mMemoryCache.put(d.getUrl(), d);
                 }
 
                 if (null != mDiskCache) {
@@ -574,7 +790,8 @@ public class BitmapLruCache {
 
                     try {
                         DiskLruCache.Editor editor = mDiskCache.edit(key);
-                        IoUtils.copy(tmpFile, editor.newOutputStream(0));
+                        IoUtils.copy(tmpFile, editor.newOutputStream(DISK_CACHE_INDEX_DATA));
+                        editor.set(DISK_CACHE_INDEX_METADATA, "");
                         editor.commit();
                     } catch (IOException e) {
                         Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
@@ -598,9 +815,7 @@ public class BitmapLruCache {
      */
     public void remove(String url) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.remove(url);
-            }
+            mMemoryCache.remove(url);
         }
 
         if (null != mDiskCache) {
@@ -620,9 +835,7 @@ public class BitmapLruCache {
      */
     public void removeFromMemoryCache(String url) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.remove(url);
-            }
+            mMemoryCache.remove(url);
         }
     }
 
@@ -649,27 +862,30 @@ public class BitmapLruCache {
      */
     public void trimMemory() {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.trimMemory();
-            }
+            mMemoryCache.trimMemory();
         }
+        ByteArrayPool.clear();
     }
 
     public void purgeMemoryCache() {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.evictAll();
-            }
+            mMemoryCache.evictAll();
         }
     }
 
     public void purgeDiskCache() {
         if (null != mDiskCache) {
             checkNotOnMainThread();
+            final File directory = mDiskCache.getDirectory();
+            final long maxSize = mDiskCache.getMaxSize();
             try {
+                // delete() also closes the cache, so open a fresh one in the same location
                 mDiskCache.delete();
+                setDiskCache(DiskLruCache.open(directory, DISK_CACHE_VERSION,
+                        DISK_CACHE_VALUE_COUNT, maxSize));
             } catch (IOException ex) {
                 ex.printStackTrace();
+                setDiskCache(null);
             }
         }
     }
@@ -733,53 +949,90 @@ public class BitmapLruCache {
     public Bitmap decodeBitmap(InputStreamProvider ip, BitmapFactory.Options opts,
                                AtomicInteger source) {
         Bitmap bm = null;
-        InputStream is = null;
         if (source != null) {
             source.set(CacheableBitmapDrawable.SOURCE_NEW);
         }
+        // Create an options instance if we haven't been provided with one
+        if (opts == null) {
+            opts = new BitmapFactory.Options();
+        }
+        // Stream decodes need a scratch buffer, take it from the pool
+        final byte[] tempStorage = (opts.inTempStorage == null)
+                ? ByteArrayPool.get(DECODE_TEMP_STORAGE_SIZE) : null;
+        if (tempStorage != null) {
+            opts.inTempStorage = tempStorage;
+        }
 
         try {
+            Bitmap inBitmap = null;
             if (mRecyclePolicy.canInBitmap()) {
-                // Create an options instance if we haven't been provided with one
-                if (opts == null) {
-                    opts = new BitmapFactory.Options();
-                }
-
                 if (opts.inSampleSize <= 1) {
                     opts.inSampleSize = 1;
 
-                    if (addInBitmapOptions(ip, opts) && source != null) {
+                    inBitmap = addInBitmapOptions(ip, opts);
+                    if (inBitmap != null && source != null) {
                         source.set(CacheableBitmapDrawable.SOURCE_INBITMAP);
                     }
                 }
             }
 
-            // Get InputStream for actual decode
-            is = ip.getInputStream();
-            // Decode stream
-            if (is == null && ip instanceof ByteArrayInputStreamProvider) {
-                byte[] data = ((ByteArrayInputStreamProvider) ip).array;
-                bm = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
-            } else {
-                bm = BitmapFactory.decodeStream(is, null, opts);
+            try {
+                bm = decode(ip, opts);
+            } catch (IllegalArgumentException e) {
+                if (inBitmap == null) {
+                    throw e;
+                }
+                // The image can't be decoded into the reused bitmap, give it back and decode
+                // into a new one
+                SDK11.addInBitmapOption(opts, null);
+                final BitmapPool pool = getBitmapPool();
+                if (null != pool) {
+                    pool.put(inBitmap);
+                }
+                if (source != null) {
+                    source.set(CacheableBitmapDrawable.SOURCE_NEW);
+                }
+                bm = decode(ip, opts);
             }
         } catch (Exception e) {
             Log.e(Constants.LOG_TAG, "Unable to decode stream",  e);
         } finally {
-            IoUtils.closeStream(is);
+            if (tempStorage != null) {
+                opts.inTempStorage = null;
+                ByteArrayPool.put(tempStorage);
+            }
         }
 
         return bm;
     }
 
-    private boolean addInBitmapOptions(InputStreamProvider ip, BitmapFactory.Options opts) {
+    private static Bitmap decode(InputStreamProvider ip, BitmapFactory.Options opts) {
+        // Get InputStream for actual decode
+        InputStream is = ip.getInputStream();
+        try {
+            // Decode stream
+            if (is == null && ip instanceof ByteArrayInputStreamProvider) {
+                ByteArrayInputStreamProvider data = (ByteArrayInputStreamProvider) ip;
+                return BitmapFactory.decodeByteArray(data.array, data.offset, data.length, opts);
+            } else {
+                return BitmapFactory.decodeStream(is, null, opts);
+            }
+        } finally {
+            IoUtils.closeStream(is);
+        }
+    }
+
+    /**
+     * @return the bitmap the image will be decoded into, or null if none could be reused
+     */
+    private Bitmap addInBitmapOptions(InputStreamProvider ip, BitmapFactory.Options opts) {
         // Create InputStream for decoding the bounds
         final InputStream is = ip.getInputStream();
         // Decode the bounds so we know what size Bitmap to look for
         opts.inJustDecodeBounds = true;
         if (is == null && ip instanceof ByteArrayInputStreamProvider) {
-            byte[] data = ((ByteArrayInputStreamProvider) ip).array;
-            BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            ByteArrayInputStreamProvider data = (ByteArrayInputStreamProvider) ip;
+            BitmapFactory.decodeByteArray(data.array, data.offset, data.length, opts);
         } else {
             BitmapFactory.decodeStream(is, null, opts);
         }
@@ -791,19 +1044,17 @@ public class BitmapLruCache {
         opts.inMutable = true;
 
         // Try and find Bitmap to use for inBitmap
-        synchronized (mMemoryCache) {
-            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight);
-            if (reusableBm != null) {
-                if (Constants.DEBUG) {
-                    Log.i(Constants.LOG_TAG, "Using inBitmap");
-                }
-                SDK11.addInBitmapOption(opts, reusableBm);
-                return true;
+        final Bitmap.Config config = (null != opts.inPreferredConfig)
+                ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        Bitmap reusableBm = getBitmapFromRemoved(opts.outWidth, opts.outHeight, config);
+        if (reusableBm != null) {
+            if (Constants.DEBUG) {
+                Log.i(Constants.LOG_TAG, "Using inBitmap");
             }
+            SDK11.addInBitmapOption(opts, reusableBm);
         }
 
-
-        return false;
+        return reusableBm;
     }
 
     /**
@@ -833,6 +1084,8 @@ public class BitmapLruCache {
 
         static final RecyclePolicy DEFAULT_RECYCLE_POLICY = RecyclePolicy.PRE_HONEYCOMB_ONLY;
 
+        static final int DEFAULT_BITMAP_POOL_MAX_SIZE_MB = 2;
+
         // Only used for Javadoc
         static final float DEFAULT_MEMORY_CACHE_HEAP_PERCENTAGE = DEFAULT_MEMORY_CACHE_HEAP_RATIO
                 * 100;
@@ -857,6 +1110,8 @@ public class BitmapLruCache {
 
         private RecyclePolicy mRecyclePolicy;
 
+        private int mBitmapPoolMaxSize;
+
         /**
          * @deprecated You should now use {@link Builder(Context)}. This is so that we can reliably
          *             set up correctly.
@@ -875,6 +1130,7 @@ public class BitmapLruCache {
             mMemoryCacheEnabled = true;
             mMemoryCacheMaxSize = DEFAULT_MEM_CACHE_MAX_SIZE_MB * MEGABYTE;
             mRecyclePolicy = DEFAULT_RECYCLE_POLICY;
+            mBitmapPoolMaxSize = DEFAULT_BITMAP_POOL_MAX_SIZE_MB * MEGABYTE;
         }
 
         /**
@@ -888,7 +1144,8 @@ public class BitmapLruCache {
                 if (Constants.DEBUG) {
                     Log.d("BitmapLruCache.Builder", "Creating Memory Cache");
                 }
-                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy));
+                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy,
+                        mBitmapPoolMaxSize));
             }
 
             if (isValidOptionsForDiskCache()) {
@@ -897,7 +1154,8 @@ public class BitmapLruCache {
                     @Override
                     protected DiskLruCache doInBackground(Void... params) {
                         try {
-                            return DiskLruCache.open(mDiskCacheLocation, 0, 1, mDiskCacheMaxSize);
+                            return DiskLruCache.open(mDiskCacheLocation, DISK_CACHE_VERSION,
+                                    DISK_CACHE_VALUE_COUNT, mDiskCacheMaxSize);
                         } catch (IOException e) {
                             e.printStackTrace();
                             return null;
@@ -991,6 +1249,18 @@ public class BitmapLruCache {
             return setMemoryCacheMaxSize(size);
         }
 
+        /**
+         * Set the maximum number of bytes of unused bitmaps kept for reuse, on devices where
+         * bitmaps can be decoded into existing ones. Defaults to {@value
+         * #DEFAULT_BITMAP_POOL_MAX_SIZE_MB}MB, 0 disables the pool.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setBitmapPoolMaxSize(int size) {
+            mBitmapPoolMaxSize = size;
+            return this;
+        }
+
         /**
          * Sets the recycle policy. This controls if {@link android.graphics.Bitmap#recycle()} is
          * called.
@@ -1077,9 +1347,21 @@ public class BitmapLruCache {
 
     public static class ByteArrayInputStreamProvider implements InputStreamProvider {
         final byte[] array;
+        final int offset;
+        final int length;
 
         public ByteArrayInputStreamProvider(byte[] array) {
+            this(array, 0, array.length);
+        }
+
+        /**
+         * Decodes {@code length} bytes of {@code array} starting at {@code offset}, so that a
+         * larger reusable buffer can be decoded without copying it first.
+         */
+        public ByteArrayInputStreamProvider(byte[] array, int offset, int length) {
             this.array = array;
+            this.offset = offset;
+            this.length = length;
         }
 
         /**
@@ -1093,24 +1375,27 @@ public class BitmapLruCache {
         }
     }
 
-    final class SnapshotInputStreamProvider implements InputStreamProvider {
-        final String mKey;
+    /**
+     * A drawable read from the disk cache, along with the metadata stored with it.
+     */
+    public static final class DiskCacheEntry {
+        private final CacheableBitmapDrawable mDrawable;
+        private final String mMetadata;
+
+        DiskCacheEntry(CacheableBitmapDrawable drawable, String metadata) {
+            mDrawable = drawable;
+            mMetadata = metadata;
+        }
 
-        SnapshotInputStreamProvider(String key) {
-            mKey = key;
+        public CacheableBitmapDrawable getDrawable() {
+            return mDrawable;
         }
 
-        @Override
-        public InputStream getInputStream() {
-            try {
-                DiskLruCache.Snapshot snapshot = mDiskCache.get(mKey);
-                if (snapshot != null) {
-                    return snapshot.getInputStream(0);
-                }
-            } catch (IOException e) {
-                Log.e(Constants.LOG_TAG, "Could open disk cache for url: " + mKey, e);
-            }
-            return null;
+        /**
+         * @return the metadata, empty if none was stored
+         */
+        public String getMetadata() {
+            return mMetadata;
         }
     }
 }
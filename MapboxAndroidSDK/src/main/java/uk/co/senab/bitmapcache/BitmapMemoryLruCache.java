@@ -16,29 +16,121 @@
 package uk.co.senab.bitmapcache;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.support.v4.util.LruCache;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
-final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
+/**
+ * The memory cache, split in independent LRU stripes so that the UI thread looking up visible
+ * tiles and the loader threads inserting new ones rarely wait for each other. A key always maps
+ * to the same stripe, and every stripe evicts on its own once it holds more than its share of
+ * the maximum size, so eviction is only approximately least recently used overall.
+ * <p/>
+ * Entries removed from any stripe feed the same index of reusable bitmaps. A bitmap only leaves
+ * the index, for the bitmap pool or a new decode, once nothing uses it anymore by the rules its
+ * drawable follows before being recycled, see {@link
+ * CacheableBitmapDrawable#setReusedIfUnused(long)}.
+ */
+final class BitmapMemoryLruCache {
 
-    private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
+    // Stripes are only added while each one can hold at least this many bytes
+    private static final int MIN_STRIPE_SIZE = 1024 * 1024;
+
+    private static final int MAX_STRIPE_COUNT = 8;
+
+    private final class Stripe extends LruCache<String, CacheableBitmapDrawable> {
+        final ReentrantLock mLock = new ReentrantLock();
+        // only written while holding the lock
+        volatile long mLockCount = 0;
+        volatile long mContentionCount = 0;
+
+        Stripe(int maxSize) {
+            super(maxSize);
+        }
+
+        /**
+         * Locks this stripe, counting the times another thread was holding it.
+         */
+        void lock() {
+            if (!mLock.tryLock()) {
+                mLock.lock();
+                mContentionCount++;
+            }
+            mLockCount++;
+        }
+
+        void unlock() {
+            mLock.unlock();
+        }
+
+        @Override
+        protected int sizeOf(String key, CacheableBitmapDrawable value) {
+            return value.getMemorySize();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key,
+                CacheableBitmapDrawable oldValue, CacheableBitmapDrawable newValue) {
+            onEntryRemoved(oldValue, newValue);
+        }
+    }
+
+    /**
+     * A soft reference to a removed entry, remembering the key of its bitmap so that it can be
+     * found in the index once it has been cleared, and when it was removed.
+     */
+    private static final class RemovedEntry extends SoftReference<CacheableBitmapDrawable> {
+        final long mKey;
+        final long mRemovedAt;
+
+        RemovedEntry(CacheableBitmapDrawable value, long key,
+                ReferenceQueue<CacheableBitmapDrawable> queue) {
+            super(value, queue);
+            mKey = key;
+            mRemovedAt = SystemClock.uptimeMillis();
+        }
+    }
+
+    // Removed entries whose bitmap may be reused, indexed by bitmap width, height and config
+    private final HashMap<Long, ArrayList<RemovedEntry>> mRemovedEntries;
+    private final ReferenceQueue<CacheableBitmapDrawable> mClearedEntries;
+    private final BitmapPool mBitmapPool;
     private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
+    private final Stripe[] mStripes;
 
-    BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
-        super(maxSize);
+    BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy, int bitmapPoolMaxSize) {
+        int stripeCount = 1;
+        while (stripeCount < MAX_STRIPE_COUNT && maxSize / (stripeCount * 2) >= MIN_STRIPE_SIZE) {
+            stripeCount *= 2;
+        }
+        mStripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            mStripes[i] = new Stripe(Math.max(1, maxSize / stripeCount));
+        }
 
         mRecyclePolicy = policy;
         mRemovedEntries = policy.canInBitmap()
-                ? Collections.synchronizedSet(new HashSet<SoftReference<CacheableBitmapDrawable>>())
+                ? new HashMap<Long, ArrayList<RemovedEntry>>()
+                : null;
+        mClearedEntries = new ReferenceQueue<CacheableBitmapDrawable>();
+        mBitmapPool = policy.canInBitmap() && bitmapPoolMaxSize > 0
+                ? new BitmapPool(bitmapPoolMaxSize)
                 : null;
     }
 
+    private Stripe getStripe(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return mStripes[h & (mStripes.length - 1)];
+    }
+
     CacheableBitmapDrawable put(CacheableBitmapDrawable value) {
         if (null != value) {
             value.setCached(true);
@@ -48,55 +140,207 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         return null;
     }
 
-    BitmapLruCache.RecyclePolicy getRecyclePolicy() {
-        return mRecyclePolicy;
+    CacheableBitmapDrawable put(String key, CacheableBitmapDrawable value) {
+        final Stripe stripe = getStripe(key);
+        stripe.lock();
+        try {
+            return stripe.put(key, value);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    CacheableBitmapDrawable get(String key) {
+        final Stripe stripe = getStripe(key);
+        stripe.lock();
+        try {
+            return stripe.get(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Gets the value for {@code key}, removing it instead if its bitmap isn't valid anymore.
+     */
+    CacheableBitmapDrawable getValid(String key) {
+        final Stripe stripe = getStripe(key);
+        stripe.lock();
+        try {
+            final CacheableBitmapDrawable value = stripe.get(key);
+            if (null != value && !value.isBitmapValid()) {
+                stripe.remove(key);
+                return null;
+            }
+            return value;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    CacheableBitmapDrawable remove(String key) {
+        final Stripe stripe = getStripe(key);
+        stripe.lock();
+        try {
+            return stripe.remove(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    void evictAll() {
+        for (Stripe stripe : mStripes) {
+            stripe.lock();
+            try {
+                stripe.evictAll();
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    int getStripeCount() {
+        return mStripes.length;
+    }
+
+    /**
+     * @return how many times a stripe was locked
+     */
+    long getLockCount() {
+        long count = 0;
+        for (Stripe stripe : mStripes) {
+            count += stripe.mLockCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return how many times a thread had to wait for another one to unlock a stripe
+     */
+    long getContentionCount() {
+        long count = 0;
+        for (Stripe stripe : mStripes) {
+            count += stripe.mContentionCount;
+        }
+        return count;
+    }
+
+    BitmapPool getBitmapPool() {
+        return mBitmapPool;
     }
 
-    @Override
-    protected int sizeOf(String key, CacheableBitmapDrawable value) {
-        return value.getMemorySize();
+    BitmapLruCache.RecyclePolicy getRecyclePolicy() {
+        return mRecyclePolicy;
     }
 
-    @Override
-    protected void entryRemoved(boolean evicted, String key, CacheableBitmapDrawable oldValue,
+    /**
+     * Called by every stripe, while holding its lock, when an entry is removed or replaced.
+     */
+    private void onEntryRemoved(CacheableBitmapDrawable oldValue,
             CacheableBitmapDrawable newValue) {
         // Notify the wrapper that it's no longer being cached
         oldValue.setCached(false);
 
+        if (newValue != null && newValue.getBitmap() == oldValue.getBitmap()) {
+            return;
+        }
         if (mRemovedEntries != null && canUseForInBitmap(oldValue)) {
+            final Bitmap bitmap = oldValue.getBitmap();
+            if (bitmap.getConfig() == null) {
+                return;
+            }
+            final long bitmapKey =
+                    BitmapPool.getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
             synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
+                purgeClearedEntries();
+                ArrayList<RemovedEntry> entries = mRemovedEntries.get(bitmapKey);
+                if (entries == null) {
+                    entries = new ArrayList<RemovedEntry>();
+                    mRemovedEntries.put(bitmapKey, entries);
+                }
+                // the bitmap may still be drawn, or about to be, so it is only indexed for now
+                // and the ones removed earlier which aren't used anymore move to the pool
+                moveUnusedToPool(entries);
+                entries.add(new RemovedEntry(oldValue, bitmapKey, mClearedEntries));
+            }
+        }
+    }
+
+    /**
+     * Moves the removed entries whose bitmap isn't used anymore to the bitmap pool, where they
+     * are strongly referenced, as long as it has room for them. Must be called while holding the
+     * lock on mRemovedEntries.
+     */
+    private void moveUnusedToPool(ArrayList<RemovedEntry> entries) {
+        if (mBitmapPool == null) {
+            return;
+        }
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            final RemovedEntry entry = entries.get(i);
+            final CacheableBitmapDrawable value = entry.get();
+            if (!canUseForInBitmap(value)) {
+                entries.remove(i);
+                continue;
+            }
+            if (value.getMemorySize() > mBitmapPool.getMaxSize() - mBitmapPool.getSize()) {
+                return;
+            }
+            if (value.setReusedIfUnused(entry.mRemovedAt)) {
+                entries.remove(i);
+                mBitmapPool.put(value.getBitmap());
+            }
+        }
+    }
+
+    /**
+     * Drops the entries whose soft reference was cleared by the garbage collector. Must be called
+     * while holding the lock on mRemovedEntries.
+     */
+    private void purgeClearedEntries() {
+        RemovedEntry cleared;
+        while ((cleared = (RemovedEntry) mClearedEntries.poll()) != null) {
+            final ArrayList<RemovedEntry> entries = mRemovedEntries.get(cleared.mKey);
+            if (entries != null) {
+                entries.remove(cleared);
             }
         }
     }
 
-    public Bitmap getBitmapFromRemoved(final int width, final int height) {
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        if (mBitmapPool != null) {
+            final Bitmap pooled = mBitmapPool.get(width, height, config);
+            if (pooled != null) {
+                return pooled;
+            }
+        }
         if (mRemovedEntries == null) {
             return null;
         }
 
-        Bitmap result = null;
-
         synchronized (mRemovedEntries) {
-            final Iterator<SoftReference<CacheableBitmapDrawable>> it = mRemovedEntries.iterator();
+            purgeClearedEntries();
+            final ArrayList<RemovedEntry> entries =
+                    mRemovedEntries.get(BitmapPool.getKey(width, height, config));
+            if (entries == null) {
+                return null;
+            }
 
-            while (it.hasNext()) {
-                CacheableBitmapDrawable value = it.next().get();
+            // Most recently removed first, so that removing the match is usually free
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                CacheableBitmapDrawable value = entries.get(i).get();
 
-                if (canUseForInBitmap(value)) {
-                    if (canUseForInBitmapForSize(value, width, height) && !value.isBeingDisplayed() && !value.isReferencedByCache()) {
-                        result = value.getBitmap();
-                        value.setReused();
-                        it.remove();
-                        break;
-                    }
-                } else {
-                    it.remove();
+                if (!canUseForInBitmap(value)) {
+                    // reused, recycled or collected since, drop it now
+                    entries.remove(i);
+                } else if (value.setReusedIfUnused(entries.get(i).mRemovedAt)) {
+                    entries.remove(i);
+                    return value.getBitmap();
                 }
             }
         }
 
-        return result;
+        return null;
     }
 
     private static boolean canUseForInBitmap(
@@ -106,27 +350,32 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
                 candidate.isBitmapMutable();
     }
 
-    private static boolean canUseForInBitmapForSize(
-            CacheableBitmapDrawable candidate, int width, int height) {
-        return
-                candidate.getIntrinsicWidth() == width &&
-                candidate.getIntrinsicHeight() == height;
-    }
-
     void trimMemory() {
-        final Set<Entry<String, CacheableBitmapDrawable>> values = snapshot().entrySet();
+        for (Stripe stripe : mStripes) {
+            stripe.lock();
+            try {
+                final Set<Entry<String, CacheableBitmapDrawable>> values =
+                        stripe.snapshot().entrySet();
 
-        for (Entry<String, CacheableBitmapDrawable> entry : values) {
-            CacheableBitmapDrawable value = entry.getValue();
-            if (null == value || !value.isBeingDisplayed()) {
-                remove(entry.getKey());
+                for (Entry<String, CacheableBitmapDrawable> entry : values) {
+                    CacheableBitmapDrawable value = entry.getValue();
+                    if (null == value || !value.isBeingDisplayed()) {
+                        stripe.remove(entry.getKey());
+                    }
+                }
+            } finally {
+                stripe.unlock();
             }
         }
-        
+
+
         if (mRemovedEntries!=null) {
             synchronized (mRemovedEntries) {
                 mRemovedEntries.clear();
             }
         }
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
     }
 }
@@ -0,0 +1,159 @@
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A pool of mutable bitmaps which are known not to be used anymore, keyed by width, height and
+ * config, to be decoded into with {@code inBitmap} or drawn into instead of allocating new ones.
+ * <p/>
+ * Unlike the soft references kept by {@link BitmapMemoryLruCache}, pooled bitmaps are strongly
+ * referenced, up to a maximum number of bytes. When the pool is full the bitmaps which have been
+ * pooled the longest are dropped first. This class is thread safe.
+ */
+public final class BitmapPool {
+
+    private final int mMaxSize;
+
+    private final HashMap<Long, ArrayList<Bitmap>> mBitmaps =
+            new HashMap<Long, ArrayList<Bitmap>>();
+
+    // every pooled bitmap, oldest first
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<Bitmap>();
+
+    private int mSize = 0;
+
+    private long mHits = 0;
+
+    private long mMisses = 0;
+
+    /**
+     * @param maxSize the maximum number of bytes of bitmaps to keep
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return a key identifying the bitmaps which can be used in place of each other
+     */
+    static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    private static int getSize(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Takes a bitmap with the given dimensions and config out of the pool.
+     *
+     * @return a bitmap whose content is undefined, or null if the pool has none
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final ArrayList<Bitmap> bitmaps = mBitmaps.get(getKey(width, height, config));
+        if (bitmaps != null) {
+            while (!bitmaps.isEmpty()) {
+                final Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+                mOrder.remove(bitmap);
+                mSize -= getSize(bitmap);
+                if (!bitmap.isRecycled()) {
+                    mHits++;
+                    return bitmap;
+                }
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Gets a bitmap from the pool, or allocates one if the pool has none with the given
+     * dimensions and config.
+     *
+     * @return a bitmap whose content is undefined
+     */
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        final Bitmap bitmap = get(width, height, config);
+        return (bitmap != null) ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Adds a bitmap to the pool. The caller must not use it anymore.
+     *
+     * @return false if the bitmap can't be pooled because it isn't mutable, is recycled or is
+     *         larger than the whole pool
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() == null) {
+            return false;
+        }
+        final int size = getSize(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+        if (!mOrder.add(bitmap)) {
+            return true;
+        }
+        final long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<Bitmap>();
+            mBitmaps.put(key, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        mSize += size;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Drops the oldest bitmaps until the pool holds at most {@code maxSize} bytes.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        final Iterator<Bitmap> it = mOrder.iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            final Bitmap bitmap = it.next();
+            it.remove();
+            mBitmaps.get(getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()))
+                    .remove(bitmap);
+            mSize -= getSize(bitmap);
+        }
+    }
+
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mOrder.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return the number of bytes of the pooled bitmaps
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return how many times a bitmap was found in the pool
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return how many times no bitmap matched in the pool
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+}
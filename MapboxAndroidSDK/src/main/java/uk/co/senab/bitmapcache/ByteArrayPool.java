@@ -0,0 +1,109 @@
+package uk.co.senab.bitmapcache;
+
+import java.util.ArrayList;
+
+/**
+ * A process-wide pool of byte arrays, used as I/O and decoding buffers so that loading images
+ * doesn't allocate new ones every time.
+ * <p/>
+ * Arrays are sorted in buckets by size, every size being a power of two between {@value
+ * #MIN_ARRAY_SIZE} and {@value #MAX_ARRAY_SIZE} bytes. A request is served with an array from the
+ * smallest bucket it fits in, so the array may be larger than requested. Larger requests are
+ * allocated and never pooled. The pool keeps at most {@value #MAX_POOL_SIZE} bytes of arrays.
+ * This class is thread safe.
+ */
+public final class ByteArrayPool {
+
+    static final int MIN_ARRAY_SIZE_SHIFT = 10;
+
+    static final int MAX_ARRAY_SIZE_SHIFT = 18;
+
+    public static final int MIN_ARRAY_SIZE = 1 << MIN_ARRAY_SIZE_SHIFT;
+
+    public static final int MAX_ARRAY_SIZE = 1 << MAX_ARRAY_SIZE_SHIFT;
+
+    public static final int MAX_POOL_SIZE = 1024 * 1024;
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayList<byte[]>[] sBuckets =
+            new ArrayList[MAX_ARRAY_SIZE_SHIFT - MIN_ARRAY_SIZE_SHIFT + 1];
+
+    private static int sSize = 0;
+
+    static {
+        for (int i = 0; i < sBuckets.length; i++) {
+            sBuckets[i] = new ArrayList<byte[]>();
+        }
+    }
+
+    /**
+     * This is a utility class with only static members.
+     */
+    private ByteArrayPool() {
+    }
+
+    /**
+     * Gets an array of at least the given size, from the pool when possible. It should be given
+     * back with {@link #put(byte[])} once it isn't used anymore.
+     *
+     * @param minSize the minimum size of the array
+     * @return an array, whose content is undefined
+     */
+    public static byte[] get(final int minSize) {
+        if (minSize > MAX_ARRAY_SIZE) {
+            return new byte[minSize];
+        }
+        final int bucket = getBucket(minSize);
+        synchronized (sBuckets) {
+            final ArrayList<byte[]> arrays = sBuckets[bucket];
+            if (!arrays.isEmpty()) {
+                final byte[] array = arrays.remove(arrays.size() - 1);
+                sSize -= array.length;
+                return array;
+            }
+        }
+        return new byte[1 << (bucket + MIN_ARRAY_SIZE_SHIFT)];
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays which weren't obtained from {@link #get(int)} are
+     * accepted if their size is one of the pooled sizes. The caller must not use the array
+     * anymore.
+     *
+     * @param array the array, can be null
+     */
+    public static void put(final byte[] array) {
+        if (array == null || array.length < MIN_ARRAY_SIZE || array.length > MAX_ARRAY_SIZE
+                || Integer.bitCount(array.length) != 1) {
+            return;
+        }
+        synchronized (sBuckets) {
+            if (sSize + array.length <= MAX_POOL_SIZE) {
+                sBuckets[getBucket(array.length)].add(array);
+                sSize += array.length;
+            }
+        }
+    }
+
+    /**
+     * Drops every pooled array, when memory is low.
+     */
+    public static void clear() {
+        synchronized (sBuckets) {
+            for (ArrayList<byte[]> arrays : sBuckets) {
+                arrays.clear();
+            }
+            sSize = 0;
+        }
+    }
+
+    /**
+     * @return the index of the smallest bucket holding arrays of at least the given size
+     */
+    private static int getBucket(final int size) {
+        if (size <= MIN_ARRAY_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_ARRAY_SIZE_SHIFT;
+    }
+}
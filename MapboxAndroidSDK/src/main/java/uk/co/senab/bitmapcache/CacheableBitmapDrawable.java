@@ -22,6 +22,7 @@ import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class CacheableBitmapDrawable extends BitmapDrawable {
@@ -184,6 +185,29 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
         }
     }
 
+    /**
+     * Marks the bitmap as reused if nothing uses it anymore, by the rules {@link
+     * #checkState(boolean)} follows before recycling it: it must be neither referenced by a cache
+     * nor displayed, and either have been displayed already or have stayed unused for {@link
+     * Constants#UNUSED_DRAWABLE_RECYCLE_DELAY_MS} since it was removed from the cache. Both happen
+     * under the lock, so a view can't start displaying it in between.
+     *
+     * @param removedAt the {@link SystemClock#uptimeMillis()} at which it was removed from the
+     *                  cache
+     * @return true if the bitmap was marked as reused and now belongs to the caller
+     */
+    synchronized boolean setReusedIfUnused(long removedAt) {
+        if (mCacheCount > 0 || mDisplayingCount > 0 || !isBitmapValid() || !isBitmapMutable()) {
+            return false;
+        }
+        if (!mHasBeenDisplayed && SystemClock.uptimeMillis() - removedAt
+                < Constants.UNUSED_DRAWABLE_RECYCLE_DELAY_MS) {
+            return false;
+        }
+        cancelCheckStateCallback();
+        mReused = true;
+        return true;
+    }
 
     /**
      * Try to recycle if not referenced by cache or being displayed.
@@ -238,8 +262,9 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
         // Cancel the callback, if one is queued.
         cancelCheckStateCallback();
 
-        // We're not being referenced or used anywhere
-        if (mCacheCount <= 0 && mDisplayingCount <= 0 && (isBitmapValid() || mReused)) {
+        // We're not being referenced or used anywhere. A reused bitmap belongs to another
+        // wrapper, it must not be recycled from here.
+        if (mCacheCount <= 0 && mDisplayingCount <= 0 && isBitmapValid()) {
 
             /**
              * If we have been displayed or we don't care whether we have
@@ -46,6 +46,27 @@ class IoUtils {
         }
     }
 
+    /**
+     * Reads {@code length} bytes from the stream into the start of {@code buffer}, and closes it.
+     *
+     * @return false if the stream ended before {@code length} bytes were read
+     */
+    static boolean readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        try {
+            int count = 0;
+            while (count < length) {
+                final int n = in.read(buffer, count, length - count);
+                if (n == -1) {
+                    return false;
+                }
+                count += n;
+            }
+            return true;
+        } finally {
+            closeStream(in);
+        }
+    }
+
     static long copy(File in, OutputStream out) throws IOException {
         return copy(new FileInputStream(in), out);
     }
@@ -59,15 +80,19 @@ class IoUtils {
      */
     private static long copy(InputStream input, OutputStream output) throws IOException {
         try {
-            byte[] buffer = new byte[1024 * 4];
-            long count = 0;
-            int n;
-            while (-1 != (n = input.read(buffer))) {
-                output.write(buffer, 0, n);
-                count += n;
+            byte[] buffer = ByteArrayPool.get(1024 * 4);
+            try {
+                long count = 0;
+                int n;
+                while (-1 != (n = input.read(buffer))) {
+                    output.write(buffer, 0, n);
+                    count += n;
+                }
+                output.flush();
+                return count;
+            } finally {
+                ByteArrayPool.put(buffer);
             }
-            output.flush();
-            return count;
         } finally {
             IoUtils.closeStream(input);
             IoUtils.closeStream(output);
@@ -0,0 +1,66 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class MapTileTest {
+
+    @Test
+    public void keyPacksCoordinates() {
+        assertEquals(0L, MapTile.getKey(0, 0, 0));
+        assertEquals(1L, MapTile.getKey(0, 0, 1));
+        assertEquals(1L << 29, MapTile.getKey(0, 1, 0));
+        assertEquals(1L << 58, MapTile.getKey(1, 0, 0));
+
+        // the largest coordinates of zoom level 29 don't overlap each other
+        final int max = (1 << 29) - 1;
+        final long key = MapTile.getKey(29, max, max);
+        assertEquals(29, key >>> 58);
+        assertEquals(max, (key >>> 29) & max);
+        assertEquals(max, key & max);
+    }
+
+    @Test
+    public void keysAreUnique() {
+        final Set<Long> keys = new HashSet<Long>();
+        for (int z = 0; z <= 4; z++) {
+            final int size = 1 << z;
+            for (int x = 0; x < size; x++) {
+                for (int y = 0; y < size; y++) {
+                    assertTrue(keys.add(MapTile.getKey(z, x, y)));
+                }
+            }
+        }
+        assertNotEquals(MapTile.getKey(3, 1, 2), MapTile.getKey(3, 2, 1));
+    }
+
+    @Test
+    public void tileMatchesItsKey() {
+        final MapTile tile = new MapTile("source", 5, 10, 20);
+        assertEquals(MapTile.getKey(5, 10, 20), tile.getKey());
+        assertTrue(tile.is(MapTile.getSourceId("source"), 5, 10, 20));
+        assertFalse(tile.is(MapTile.getSourceId("other"), 5, 10, 20));
+        assertFalse(tile.is(tile.getSourceId(), 5, 20, 10));
+        assertEquals(new MapTile("source", 5, 10, 20).hashCode(), tile.hashCode());
+        assertEquals(new MapTile("source", 5, 10, 20), tile);
+    }
+
+    @Test
+    public void sourceIdsAreStable() {
+        assertEquals(MapTile.getSourceId("a"), MapTile.getSourceId(new String("a")));
+        assertNotEquals(MapTile.getSourceId("a"), MapTile.getSourceId("b"));
+        assertEquals(MapTile.getSourceId(null), MapTile.getSourceId(null));
+    }
+
+    @Test
+    public void cacheKeyIsBuiltFromTheCoordinates() {
+        assertEquals("source/5/10/20", new MapTile("source", 5, 10, 20).getCacheKey());
+        assertEquals("5/10/20", new MapTile("source", 5, 10, 20).toString());
+    }
+}
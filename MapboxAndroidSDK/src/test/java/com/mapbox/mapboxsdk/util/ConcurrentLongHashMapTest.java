@@ -0,0 +1,134 @@
+package com.mapbox.mapboxsdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ConcurrentLongHashMapTest {
+
+    @Test
+    public void putGetRemove() {
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1L, "a"));
+        assertNull(map.put(-1L, "b"));
+        assertEquals(2, map.size());
+        assertEquals("a", map.get(1L));
+        assertEquals("b", map.get(-1L));
+        assertNull(map.get(2L));
+
+        assertEquals("a", map.put(1L, "c"));
+        assertEquals("c", map.get(1L));
+        assertEquals(2, map.size());
+
+        assertEquals("c", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertFalse(map.containsKey(1L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void putIfAbsent() {
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        assertNull(map.putIfAbsent(1L, "a"));
+        assertEquals("a", map.putIfAbsent(1L, "b"));
+        assertEquals("a", map.get(1L));
+        map.remove(1L);
+        assertNull(map.putIfAbsent(1L, "c"));
+        assertEquals("c", map.get(1L));
+    }
+
+    @Test
+    public void removedKeyReusesItsSlot() {
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(7L, "a");
+            map.remove(7L);
+        }
+        assertTrue(map.isEmpty());
+        map.put(7L, "b");
+        assertEquals("b", map.get(7L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void growsWithoutLosingEntries() {
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>(2);
+        for (long i = 0; i < 1000; i++) {
+            map.put(i << 29, String.valueOf(i));
+        }
+        assertEquals(1000, map.size());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), map.get(i << 29));
+        }
+    }
+
+    @Test
+    public void churnKeepsLiveEntries() {
+        // a sliding window of keys, every removal leaves a tombstone until the table is rebuilt
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        final int window = 20;
+        for (long i = 0; i < 10000; i++) {
+            map.put(i, String.valueOf(i));
+            if (i >= window) {
+                assertEquals(String.valueOf(i - window), map.remove(i - window));
+            }
+        }
+        assertEquals(window, map.size());
+        for (long i = 10000 - window; i < 10000; i++) {
+            assertEquals(String.valueOf(i), map.get(i));
+        }
+        assertNull(map.get(10000 - window - 1));
+    }
+
+    @Test
+    public void clear() {
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        for (long i = 0; i < 100; i++) {
+            map.put(i, "a");
+        }
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1L));
+        map.put(1L, "b");
+        assertEquals("b", map.get(1L));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullValues() {
+        new ConcurrentLongHashMap<String>().put(1L, null);
+    }
+
+    @Test
+    public void readersNeverSeeTheValueOfAnotherKey() throws InterruptedException {
+        final ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (long i = 0; i < 100000; i++) {
+                    map.put(i, i);
+                    if (i >= 50) {
+                        map.remove(i - 50);
+                    }
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            for (long key = 0; key < 1000; key++) {
+                final Long value = map.get(key);
+                if (value != null && value != key) {
+                    error.set("key " + key + " mapped to " + value);
+                }
+            }
+        }
+        writer.join();
+        assertNull(error.get());
+        assertEquals(50, map.size());
+    }
+}
@@ -0,0 +1,123 @@
+package com.mapbox.mapboxsdk.util;
+
+import static org.junit.Assert.assertEquals;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import java.util.HashMap;
+import org.junit.Test;
+
+/**
+ * Compares lookups in {@link LongHashMap} and {@link ConcurrentLongHashMap} with a HashMap of
+ * boxed keys, for tile keys laid out like the ones of a map at zoom level 18: square blocks of
+ * adjacent tiles, the case where a weak hash of the coordinates collides the most.
+ * <p/>
+ * Misses look up the block right next to the stored one. This isn't run by the unitTest task,
+ * run it with the benchmark task and compare the printed timings.
+ */
+public class LongHashMapBenchmark {
+
+    private static final int ZOOM = 18;
+    // around the center of the world at zoom level 18, like a city
+    private static final int ORIGIN = 1 << (ZOOM - 1);
+    private static final int[] BLOCK_SIDES = {8, 32, 128, 512};
+    // lookups made before measuring, so that the code is compiled, and while measuring
+    private static final int WARMUP_LOOKUPS = 2000000;
+    private static final int MEASURED_LOOKUPS = 5000000;
+
+    private interface Lookup {
+        int lookup(long[] aKeys);
+    }
+
+    private static long[] getKeys(final int aSide, final int aOffsetX) {
+        final long[] keys = new long[aSide * aSide];
+        for (int y = 0; y < aSide; y++) {
+            for (int x = 0; x < aSide; x++) {
+                keys[y * aSide + x] = MapTile.getKey(ZOOM, ORIGIN + aOffsetX + x, ORIGIN + y);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the average time of a lookup, in nanoseconds
+     */
+    private static double time(final Lookup aLookup, final long[] aKeys, final int aExpected) {
+        for (int i = 0; i < WARMUP_LOOKUPS / aKeys.length + 1; i++) {
+            assertEquals(aExpected, aLookup.lookup(aKeys));
+        }
+        final int rounds = MEASURED_LOOKUPS / aKeys.length + 1;
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            assertEquals(aExpected, aLookup.lookup(aKeys));
+        }
+        return (double) (System.nanoTime() - start) / rounds / aKeys.length;
+    }
+
+    @Test
+    public void lookups() {
+        System.out.println("tiles      map                     hit ns   miss ns");
+        for (final int side : BLOCK_SIDES) {
+            final long[] keys = getKeys(side, 0);
+            final long[] missingKeys = getKeys(side, side);
+
+            final LongHashMap<Object> longMap = new LongHashMap<Object>();
+            final ConcurrentLongHashMap<Object> concurrentMap = new ConcurrentLongHashMap<Object>();
+            final HashMap<Long, Object> boxedMap = new HashMap<Long, Object>();
+            for (final long key : keys) {
+                longMap.put(key, Boolean.TRUE);
+                concurrentMap.put(key, Boolean.TRUE);
+                boxedMap.put(key, Boolean.TRUE);
+            }
+
+            final Lookup longLookup = new Lookup() {
+                @Override
+                public int lookup(final long[] aKeys) {
+                    int found = 0;
+                    for (final long key : aKeys) {
+                        if (longMap.get(key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            };
+            final Lookup concurrentLookup = new Lookup() {
+                @Override
+                public int lookup(final long[] aKeys) {
+                    int found = 0;
+                    for (final long key : aKeys) {
+                        if (concurrentMap.get(key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            };
+            final Lookup boxedLookup = new Lookup() {
+                @Override
+                public int lookup(final long[] aKeys) {
+                    int found = 0;
+                    for (final long key : aKeys) {
+                        if (boxedMap.get(key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            };
+
+            print(keys.length, "LongHashMap", time(longLookup, keys, keys.length),
+                    time(longLookup, missingKeys, 0));
+            print(keys.length, "ConcurrentLongHashMap", time(concurrentLookup, keys, keys.length),
+                    time(concurrentLookup, missingKeys, 0));
+            print(keys.length, "HashMap<Long>", time(boxedLookup, keys, keys.length),
+                    time(boxedLookup, missingKeys, 0));
+        }
+    }
+
+    private static void print(final int aCount, final String aMap, final double aHitNs,
+            final double aMissNs) {
+        System.out.println(String.format("%-10d %-22s %7.1f %9.1f", aCount, aMap, aHitNs,
+                aMissNs));
+    }
+}
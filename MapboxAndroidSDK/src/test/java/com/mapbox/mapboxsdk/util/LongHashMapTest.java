@@ -0,0 +1,139 @@
+package com.mapbox.mapboxsdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+public class LongHashMapTest {
+
+    private static List<String> valuesOf(final LongHashMap<String> aMap) {
+        final List<String> values = new ArrayList<String>();
+        for (String value : aMap.values()) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    @Test
+    public void putGetRemove() {
+        final LongHashMap<String> map = new LongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1L, "a"));
+        assertNull(map.put(-1L, "b"));
+        assertNull(map.put(Long.MAX_VALUE, "c"));
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(1L));
+        assertEquals("b", map.get(-1L));
+        assertEquals("c", map.get(Long.MAX_VALUE));
+        assertNull(map.get(2L));
+        assertTrue(map.containsKey(-1L));
+        assertFalse(map.containsKey(0L));
+
+        assertEquals("a", map.put(1L, "d"));
+        assertEquals("d", map.get(1L));
+        assertEquals(3, map.size());
+
+        assertEquals("b", map.remove(-1L));
+        assertNull(map.remove(-1L));
+        assertFalse(map.containsKey(-1L));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void iteratesInInsertionOrder() {
+        final LongHashMap<String> map = new LongHashMap<String>();
+        map.put(30L, "a");
+        map.put(10L, "b");
+        map.put(20L, "c");
+        // putting a present key doesn't move it
+        map.put(30L, "d");
+        assertEquals(java.util.Arrays.asList("d", "b", "c"), valuesOf(map));
+
+        // a removed key goes at the end when put again
+        map.remove(10L);
+        map.put(10L, "e");
+        assertEquals(java.util.Arrays.asList("d", "c", "e"), valuesOf(map));
+    }
+
+    @Test
+    public void growsAndKeepsOrder() {
+        final LongHashMap<String> map = new LongHashMap<String>(4);
+        final List<String> expected = new ArrayList<String>();
+        for (long i = 0; i < 1000; i++) {
+            final long key = i * 0x100000001L;
+            map.put(key, String.valueOf(i));
+            expected.add(String.valueOf(i));
+        }
+        assertEquals(1000, map.size());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), map.get(i * 0x100000001L));
+        }
+        assertEquals(expected, valuesOf(map));
+    }
+
+    @Test
+    public void iteratorRemove() {
+        final LongHashMap<String> map = new LongHashMap<String>();
+        for (long i = 0; i < 10; i++) {
+            map.put(i, String.valueOf(i));
+        }
+        final Iterator<String> iterator = map.values().iterator();
+        while (iterator.hasNext()) {
+            if (Integer.parseInt(iterator.next()) % 2 == 0) {
+                iterator.remove();
+            }
+        }
+        assertEquals(java.util.Arrays.asList("1", "3", "5", "7", "9"), valuesOf(map));
+        assertFalse(map.containsKey(4L));
+        assertEquals(5, map.size());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void iteratorFailsAfterModification() {
+        final LongHashMap<String> map = new LongHashMap<String>();
+        map.put(1L, "a");
+        map.put(2L, "b");
+        final Iterator<String> iterator = map.values().iterator();
+        iterator.next();
+        map.put(3L, "c");
+        iterator.next();
+    }
+
+    @Test
+    public void clear() {
+        final LongHashMap<String> map = new LongHashMap<String>();
+        map.put(1L, "a");
+        map.put(2L, "b");
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1L));
+        assertFalse(map.values().iterator().hasNext());
+        map.put(2L, "c");
+        assertEquals(java.util.Arrays.asList("c"), valuesOf(map));
+    }
+
+    @Test
+    public void hashSpreadsNeighbouringKeys() {
+        // keys which only differ in their high bits, like tiles of different zoom levels, must
+        // not land in the same bucket
+        final int mask = 15;
+        final boolean[] buckets = new boolean[mask + 1];
+        int used = 0;
+        for (long z = 0; z < 16; z++) {
+            final int bucket = LongHashMap.hash(z << 58) & mask;
+            if (!buckets[bucket]) {
+                buckets[bucket] = true;
+                used++;
+            }
+        }
+        assertTrue(used > 4);
+        assertEquals(LongHashMap.mix(42L), LongHashMap.mix(42L));
+    }
+}
@@ -0,0 +1,71 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import uk.co.senab.bitmapcache.BitmapLruCache;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * Measures how long the memory cache takes to look for a reusable bitmap among the entries it
+ * removed, as the number of removed entries grows. They are indexed by bitmap size and config,
+ * so a size nobody removed should cost the same whatever their number, and a removed size only
+ * the entries of that size. The timings are logged under the BitmapLruCacheBenchmark tag.
+ */
+public class BitmapLruCacheBenchmark extends AndroidTestCase {
+
+    private static final int[] REMOVED_COUNTS = {16, 64, 256, 1024};
+    // removed entries are spread over that many bitmap sizes
+    private static final int SIZE_COUNT = 16;
+    private static final int SMALLEST_SIZE = 8;
+    private static final int LOOKUPS = 20000;
+
+    public void testRemovedEntryLookups() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // bitmaps can't be reused before Honeycomb, nothing is indexed
+            return;
+        }
+        Log.i(TAG, "removed  miss ns  bucket ns");
+        for (final int count : REMOVED_COUNTS) {
+            // every entry is evicted as soon as it is put, and none goes to the pool
+            final BitmapLruCache cache = new BitmapLruCache.Builder(getContext())
+                    .setMemoryCacheEnabled(true)
+                    .setMemoryCacheMaxSize(1)
+                    .setBitmapPoolMaxSize(0)
+                    .build();
+            // keeps the removed entries from being collected while measuring
+            final ArrayList<CacheableBitmapDrawable> removed =
+                    new ArrayList<CacheableBitmapDrawable>(count);
+            for (int i = 0; i < count; i++) {
+                final int size = SMALLEST_SIZE + i % SIZE_COUNT;
+                removed.add(cache.putInMemoryCache("benchmark/" + count + "/" + i,
+                        Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)));
+            }
+
+            // a size which was never removed: only the index is looked up
+            Assert.assertNull(cache.getBitmapFromRemoved(SMALLEST_SIZE - 1, SMALLEST_SIZE - 1));
+            final double missNs = time(cache, SMALLEST_SIZE - 1);
+            // a removed size: its entries were neither displayed nor removed long enough ago
+            // to be reused, so every one of them is checked
+            final double bucketNs = time(cache, SMALLEST_SIZE);
+            Log.i(TAG, String.format("%-8d %7.0f %10.0f", count, missNs, bucketNs));
+            removed.clear();
+        }
+    }
+
+    /**
+     * @return the average time of a lookup, in nanoseconds
+     */
+    private static double time(final BitmapLruCache aCache, final int aSize) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            aCache.getBitmapFromRemoved(aSize, aSize);
+        }
+        return (double) (System.nanoTime() - start) / LOOKUPS;
+    }
+
+    private static final String TAG = "BitmapLruCacheBenchmark";
+}